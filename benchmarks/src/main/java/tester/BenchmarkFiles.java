@@ -0,0 +1,64 @@
+package tester;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * Source files for the benchmarks. The content is a fixed seeded 1 MB block repeated to the
+ * requested size, so every run and every machine sends the same bytes. Files are kept in
+ * letsshare.bench.dir (the temp folder by default) and reused while their size matches, so
+ * the multi-gigabyte ones are only written once.
+ */
+final class BenchmarkFiles {
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final long SEED = 0x4C534853L;
+
+    private BenchmarkFiles() {
+    }
+
+    static Path folder() throws IOException {
+        Path folder = Paths.get(System.getProperty("letsshare.bench.dir", System.getProperty("java.io.tmpdir")),
+                "letsshare-bench");
+        Files.createDirectories(folder);
+        return folder;
+    }
+
+    // Accepts a plain byte count or a number with a KB, MB or GB suffix, like the @Param values
+    static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        final String[] units = {"KB", "MB", "GB"};
+        for (int i = 0; i < units.length; i++) {
+            if (value.endsWith(units[i])) {
+                return Long.parseLong(value.substring(0, value.length() - 2).trim()) << (10 * (i + 1));
+            }
+        }
+        return Long.parseLong(value);
+    }
+
+    static Path source(long size) throws IOException {
+        Path file = folder().resolve("source-" + size + ".bin");
+        if (Files.exists(file) && Files.size(file) == size) {
+            return file;
+        }
+        byte[] block = new byte[BLOCK_SIZE];
+        new Random(SEED).nextBytes(block);
+        Path temp = Files.createTempFile(folder(), "source", ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            for (long written = 0; written < size; written += BLOCK_SIZE) {
+                out.write(block, 0, (int) Math.min(BLOCK_SIZE, size - written));
+            }
+        }
+        return Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    static Path target() throws IOException {
+        Path file = Files.createTempFile(folder(), "target", ".bin");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,113 @@
+package tester;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The stream send path with different chunk sizes: the file goes through Pipeline.run into a
+ * loopback socket the same way TransferEngine.sendPipelined does, and the receiver discards
+ * it. chunk is what PeerTuning would pick for a peer; socketBuffer 0 leaves SO_SNDBUF and
+ * SO_RCVBUF to the operating system, as for an untuned peer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BufferSizeBenchmark {
+    @Param({"1MB", "64MB", "1GB"})
+    public String size;
+
+    @Param({"32768", "65536", "262144", "1048576"})
+    public int chunk;
+
+    @Param({"0", "65536", "4194304"})
+    public int socketBuffer;
+
+    private long count;
+    private FileChannel source;
+    private ServerSocket server;
+    private ExecutorService receiver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        count = BenchmarkFiles.parseSize(size);
+        source = FileChannel.open(BenchmarkFiles.source(count), StandardOpenOption.READ);
+        server = new ServerSocket();
+        if (socketBuffer > 0) {
+            server.setReceiveBufferSize(socketBuffer);
+        }
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receiver.shutdown();
+        server.close();
+        source.close();
+    }
+
+    @Benchmark
+    public long send() throws Exception {
+        Future<Long> received = receiver.submit(this::discard);
+        long[] read = new long[1];
+        long sent;
+        try (Socket socket = new Socket()) {
+            if (socketBuffer > 0) {
+                socket.setSendBufferSize(socketBuffer);
+            }
+            socket.connect(server.getLocalSocketAddress());
+            OutputStream out = socket.getOutputStream();
+            sent = Pipeline.run(count, chunk, false, Metrics.Io.DISK, buffer -> {
+                if (read[0] == count) {
+                    return -1;
+                }
+                buffer.limit((int) Math.min(buffer.capacity(), count - read[0]));
+                int bytesRead = source.read(buffer, read[0]);
+                read[0] += bytesRead;
+                return bytesRead;
+            }, buffer -> out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining()));
+            out.flush();
+        }
+        received.get();
+        return sent;
+    }
+
+    private long discard() throws Exception {
+        try (Socket socket = server.accept(); InputStream in = socket.getInputStream()) {
+            byte[] buffer = new byte[AppConstants.TUNING_MAX_CHUNK];
+            long total = 0;
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                total += bytesRead;
+            }
+            return total;
+        }
+    }
+}
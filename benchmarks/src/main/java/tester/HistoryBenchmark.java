@@ -0,0 +1,139 @@
+package tester;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading and writing the transfer history, with stores of their own in the benchmark folder
+ * so the real history is never touched:
+ * open       - opening a store of entries records, which rebuilds the indexes and rollups
+ * readAll    - loading every entry, as the History table does for its first page
+ * parseLog   - parsing the lines of an old logs.txt, the format History used to read
+ * append     - the write HistoryWriter.log queues for every transfer, one entry at a time
+ * appendSync - the same, forced to disk like a HISTORY_SYNC_INTERVAL_MS of 0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    @Param({"1000", "100000"})
+    public int entries;
+
+    private Path folder;
+    private HistoryStore store;
+    private HistoryStore appendStore;
+    private List<String> logLines;
+    private HistoryStore.Entry next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        folder = Files.createTempDirectory(BenchmarkFiles.folder(), "history");
+        Random random = new Random(entries);
+        List<HistoryStore.Entry> generated = new ArrayList<>();
+        logLines = new ArrayList<>();
+        long time = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+        for (int i = 0; i < entries; i++) {
+            time += random.nextInt(600_000);
+            String operation = random.nextBoolean() ? HistoryStore.SEND : HistoryStore.RECEIVE;
+            String peer = "192.168.1." + (1 + random.nextInt(20));
+            String name = "file-" + random.nextInt(entries) + ".bin";
+            long bytes = 1 + (long) (random.nextDouble() * 4L * 1024 * 1024 * 1024);
+            long durationMs = 1 + random.nextInt(60_000);
+            generated.add(new HistoryStore.Entry(time, operation, peer, name, bytes, durationMs,
+                    bytes * 1000 / durationMs));
+            logLines.add(TIME_FORMAT.format(Instant.ofEpochMilli(time)) + "  " + operation + "  " + peer + "  "
+                    + name + "  " + getReadableFileSize(bytes) + "  ");
+        }
+
+        File storeFolder = folder.resolve("store").toFile();
+        storeFolder.mkdirs();
+        HistoryStore writer = HistoryStore.open(storeFolder);
+        writer.appendAll(generated);
+        writer.force();
+        writer.close();
+        store = HistoryStore.open(storeFolder);
+
+        File appendFolder = folder.resolve("append").toFile();
+        appendFolder.mkdirs();
+        appendStore = HistoryStore.open(appendFolder);
+        next = generated.get(generated.size() - 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        store.close();
+        appendStore.close();
+        try (Stream<Path> files = Files.walk(folder)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public int open() throws Exception {
+        HistoryStore opened = HistoryStore.open(folder.resolve("store").toFile());
+        int size = opened.size();
+        opened.close();
+        return size;
+    }
+
+    @Benchmark
+    public List<HistoryStore.Entry> readAll() throws Exception {
+        return store.range(0, store.size());
+    }
+
+    @Benchmark
+    public void parseLog(Blackhole blackhole) {
+        for (String line : logLines) {
+            blackhole.consume(HistoryStore.parseLine(line));
+        }
+    }
+
+    @Benchmark
+    public void append() throws Exception {
+        appendStore.append(next);
+    }
+
+    @Benchmark
+    public void appendSync() throws Exception {
+        appendStore.append(next);
+        appendStore.force();
+    }
+
+    private static String getReadableFileSize(long bytes) {
+        if (bytes <= 0) return "0 B";
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int digitGroups = (int) (Math.log10(bytes) / Math.log10(1024));
+        return String.format("%.2f %s", bytes / Math.pow(1024, digitGroups), units[digitGroups]);
+    }
+}
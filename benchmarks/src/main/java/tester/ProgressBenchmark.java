@@ -0,0 +1,109 @@
+package tester;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What one onProgress call costs the transfer loop, for each kind of listener the app chains
+ * onto a body: the Send task's counter, the ParallelTransfer range total, an unlimited
+ * per-transfer limiter under the global one, and all of them together with a running
+ * ThroughputMeter sampling the counter. Each call reports one more BUFFER_SIZE read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProgressBenchmark {
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final RateLimiter limit = new RateLimiter(0, new RateLimiter(0));
+    private TransferEngine.ProgressListener none;
+    private TransferEngine.ProgressListener counter;
+    private TransferEngine.ProgressListener rangeTotal;
+    private TransferEngine.ProgressListener limited;
+    private TransferEngine.ProgressListener chained;
+    private ThroughputMeter meter;
+    private long transferred;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        none = bytes -> { };
+        // As Send.FileTransferTask.progress
+        counter = bytes -> sent.getAndAccumulate(bytes, Math::max);
+        rangeTotal = new TransferEngine.ProgressListener() {
+            private long last;
+
+            @Override
+            public void onProgress(long bytes) {
+                total.addAndGet(bytes - last);
+                last = bytes;
+            }
+        };
+        limited = new TransferEngine.ProgressListener() {
+            private long last;
+
+            @Override
+            public void onProgress(long bytes) {
+                limit.acquire(bytes - last);
+                last = bytes;
+            }
+        };
+        chained = bytes -> {
+            limited.onProgress(bytes);
+            rangeTotal.onProgress(bytes);
+            counter.onProgress(bytes);
+        };
+        meter = new ThroughputMeter(sent::get);
+        meter.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        meter.stop();
+    }
+
+    @Benchmark
+    public long none() {
+        none.onProgress(transferred += AppConstants.BUFFER_SIZE);
+        return transferred;
+    }
+
+    @Benchmark
+    public long counter() {
+        counter.onProgress(transferred += AppConstants.BUFFER_SIZE);
+        return transferred;
+    }
+
+    @Benchmark
+    public long rangeTotal() {
+        rangeTotal.onProgress(transferred += AppConstants.BUFFER_SIZE);
+        return transferred;
+    }
+
+    @Benchmark
+    public long unlimitedRateLimiter() {
+        limited.onProgress(transferred += AppConstants.BUFFER_SIZE);
+        return transferred;
+    }
+
+    @Benchmark
+    public long chainedWithMeter() {
+        chained.onProgress(transferred += AppConstants.BUFFER_SIZE);
+        return transferred;
+    }
+}
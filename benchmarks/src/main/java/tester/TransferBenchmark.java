@@ -0,0 +1,126 @@
+package tester;
+
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One file body over a fresh loopback connection, both ends in this JVM, with the send and
+ * receive paths the app uses:
+ * stream   - plain socket on the sending side, so TransferEngine takes the stream loop (pipelined
+ *            from PIPELINE_MIN_BYTES), read back through the receiver's input stream
+ * zeroCopy - socket channel on both sides: transferTo out, pooled direct buffers in
+ * mapped   - MappedTransfer on both sides
+ * No header or handshake is exchanged, only the body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransferBenchmark {
+    @Param({"1KB", "1MB", "64MB", "1GB", "4GB"})
+    public String size;
+
+    @Param({"stream", "zeroCopy", "mapped"})
+    public String mode;
+
+    private long count;
+    private Path target;
+    private FileChannel source;
+    private FileChannel targetChannel;
+    private ServerSocketChannel server;
+    private ExecutorService receiver;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        count = BenchmarkFiles.parseSize(size);
+        source = FileChannel.open(BenchmarkFiles.source(count), StandardOpenOption.READ);
+        target = BenchmarkFiles.target();
+        try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+            // MappedTransfer expects the target preallocated, as ParallelTransfer does
+            raf.setLength(count);
+        }
+        targetChannel = FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        server = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver = Executors.newSingleThreadExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        receiver.shutdown();
+        server.close();
+        source.close();
+        targetChannel.close();
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public long transfer() throws Exception {
+        Future<Long> received = receiver.submit(this::receive);
+        try (Socket socket = connect()) {
+            socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+            if (mode.equals("mapped")) {
+                MappedTransfer.send(source, 0, count, socket, transferred -> { });
+            } else {
+                TransferEngine.sendFile(source, 0, count, socket, socket.getOutputStream(), transferred -> { });
+            }
+        }
+        long bytes = received.get();
+        if (bytes != count) {
+            throw new IllegalStateException("Received " + bytes + " of " + count + " bytes");
+        }
+        return bytes;
+    }
+
+    private Socket connect() throws Exception {
+        InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+        if (mode.equals("stream")) {
+            return new Socket(address.getAddress(), address.getPort());
+        }
+        return SocketChannel.open(address).socket();
+    }
+
+    private long receive() throws Exception {
+        try (SocketChannel channel = server.accept()) {
+            Socket socket = channel.socket();
+            socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+            TransferEngine.HeaderInputStream in = new TransferEngine.HeaderInputStream(socket.getInputStream(),
+                    AppConstants.BUFFER_SIZE);
+            switch (mode) {
+                case "stream":
+                    return TransferEngine.receiveBuffered(in, targetChannel, 0, count, transferred -> { });
+                case "mapped":
+                    return MappedTransfer.receive(in, socket, targetChannel, 0, count, transferred -> { });
+                default:
+                    return TransferEngine.receiveFile(in, socket, targetChannel, 0, count, transferred -> { });
+            }
+        }
+    }
+}
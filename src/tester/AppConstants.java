@@ -13,4 +13,66 @@ public class AppConstants {
     public static final int SOCKET_TIMEOUT = 60000;
     public static final int BUFFER_SIZE = 32768;
     public static final String HANDSHAKE_MESSAGE = "sir";
+    public static final boolean ZERO_COPY_ENABLED = true;
+    public static final int DIRECT_BUFFER_SIZE = 262144;
+    public static final int DIRECT_BUFFER_POOL_LIMIT = 16;
+    // Buffers in flight between the disk and network threads of one body
+    public static final int PIPELINE_DEPTH = 4;
+    public static final int PIPELINE_BUFFER_SIZE = 262144;
+    // Smaller bodies are copied on the calling thread; a handoff would cost more than it saves
+    public static final long PIPELINE_MIN_BYTES = 1024 * 1024;
+    public static final long MAPPED_MIN_BYTES = 64L * 1024 * 1024;
+    public static final long MAPPED_MIN_WINDOW = 16L * 1024 * 1024;
+    public static final long MAPPED_MAX_WINDOW = 256L * 1024 * 1024;
+    public static final int MAPPED_WRITE_SIZE = 1024 * 1024;
+    // How long PeerTuning watches a transfer before resizing; shorter transfers are judged when they end
+    public static final long TUNING_PROBE_MS = 2000;
+    public static final long TUNING_MIN_SAMPLE_MS = 500;
+    public static final int TUNING_MIN_BUFFER = 64 * 1024;
+    public static final int TUNING_MAX_BUFFER = 16 * 1024 * 1024;
+    public static final int TUNING_MAX_CHUNK = 1024 * 1024;
+    // How often the command line prints progress and session changes
+    public static final long CLI_REPORT_MS = 1000;
+    // System property with the loopback port for the text metrics endpoint; unset serves none
+    public static final String METRICS_PORT_PROPERTY = "letsshare.metrics.port";
+    // System property with the folder for history and peer tuning; unset uses the platform default
+    public static final String DATA_DIR_PROPERTY = "letsshare.data.dir";
+    // Synthetic data per stage of a self-test unless --size says otherwise
+    public static final long SELFTEST_SIZE = 256L * 1024 * 1024;
+    public static final int DEFAULT_STREAMS = 4;
+    public static final int MAX_STREAMS = 16;
+    public static final long MIN_STREAM_RANGE = 16L * 1024 * 1024;
+    public static final int RESUME_BLOCK_SIZE = 8 * 1024 * 1024;
+    public static final int RESUME_VERIFY_TIMEOUT = 600000;
+    public static final long CHECKPOINT_INTERVAL_MS = 1000;
+    public static final long BATCH_ZERO_COPY_THRESHOLD = 1024 * 1024;
+    // Event loop threads of the non-blocking engine, each serving many connections
+    public static final int NIO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_MAX_SESSIONS = 8;
+    public static final int COMPRESSION_BLOCK_SIZE = 1024 * 1024;
+    public static final int COMPRESSION_SAMPLE_SIZE = 64 * 1024;
+    public static final double COMPRESSION_MAX_RATIO = 0.9; // Send a block stored unless its sample shrinks below this
+    public static final int COMPRESSION_WINDOW = 8;
+    public static final int INTEGRITY_CHUNK_SIZE = 1024 * 1024;
+    public static final int DELTA_MIN_BLOCK_SIZE = 2048;
+    public static final int DELTA_MAX_BLOCK_SIZE = 128 * 1024;
+    public static final int DELTA_MAX_BLOCKS = 1 << 22;
+    public static final int DELTA_LITERAL_SIZE = 64 * 1024;
+    public static final int DEDUP_MIN_CHUNK_SIZE = 16 * 1024;
+    public static final int DEDUP_MAX_CHUNK_SIZE = 256 * 1024;
+    public static final int DEDUP_CHUNK_BITS = 16; // Average chunk of about 64 KB past the minimum
+    public static final int DEDUP_MAX_CHUNKS = 1 << 22;
+    public static final int CHUNK_INDEX_COMPACT_SLACK = 1 << 16;
+    public static final int HISTORY_PAGE_SIZE = 200;
+    public static final int HISTORY_CACHED_PAGES = 16;
+    // 0 forces every history write to disk; otherwise at most one force per interval
+    public static final long HISTORY_SYNC_INTERVAL_MS = 1000;
+    public static final long HISTORY_CLOSE_TIMEOUT_MS = 5000;
+    public static final long THROUGHPUT_WINDOW_MS = 1000;
+    // Transfer loops only bump a counter; speed is sampled and the UI repainted at these rates
+    public static final long PROGRESS_SAMPLE_MS = 250;
+    public static final int PROGRESS_REFRESH_MS = 250;
+    public static final double SPEED_SMOOTHING = 0.3; // Weight of the newest sample in the moving average
+    // Longest a throttled sender sleeps before looking at the rate again
+    public static final long RATE_LIMIT_SLICE_NANOS = 50_000_000L;
 }
\ No newline at end of file
@@ -87,6 +87,12 @@ public class ApplicationGUI extends BaseWindow {
     }
 
     public static void main(String[] args) {
+        Metrics.startConfiguredEndpoint();
+        // Arguments mean a headless send or receive daemon, see Cli
+        if (args.length > 0) {
+            Cli.main(args);
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
             try {
                 // Set system look and feel
@@ -0,0 +1,347 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Streams several files and whole directory trees over one connection. The manifest totals
+ * come first, then one record per entry (relative path, permissions, size) directly followed
+ * by the file body, with no per-file handshake. Small bodies are pipelined through the
+ * buffered stream; large ones are flushed and sent with transferTo.
+ */
+public class BatchTransfer {
+    static final byte ENTRY_END = 0;
+    static final byte ENTRY_DIRECTORY = 1;
+    static final byte ENTRY_FILE = 2;
+
+    public static class Entry {
+        private final File source;
+        private final String path;
+        private final boolean directory;
+        private final long size;
+        private final int permissions;
+
+        Entry(File source, String path, boolean directory, long size, int permissions) {
+            this.source = source;
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.permissions = permissions;
+        }
+
+        public File getSource() {
+            return source;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+
+    // One entry as it appears on the wire; the body of a file follows it directly
+    static class Record {
+        final byte type;
+        final String path;
+        final int permissions;
+        final long size;
+
+        Record(byte type, String path, int permissions, long size) {
+            this.type = type;
+            this.path = path;
+            this.permissions = permissions;
+            this.size = size;
+        }
+    }
+
+    // Totals announced before the first entry, so the receiver can show progress
+    public static class Manifest {
+        private final String label;
+        private final int entryCount;
+        private final long totalBytes;
+
+        Manifest(String label, int entryCount, long totalBytes) {
+            this.label = label;
+            this.entryCount = entryCount;
+            this.totalBytes = totalBytes;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public int getEntryCount() {
+            return entryCount;
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+    }
+
+    private BatchTransfer() {
+    }
+
+    public static List<Entry> collect(List<File> roots) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (File root : roots) {
+            Path base = root.toPath().toAbsolutePath().getParent();
+            try (Stream<Path> walk = Files.walk(root.toPath().toAbsolutePath())) {
+                for (Path path : (Iterable<Path>) walk::iterator) {
+                    boolean directory = Files.isDirectory(path);
+                    if (!directory && !Files.isRegularFile(path)) {
+                        continue; // Skip sockets, devices and broken links
+                    }
+                    String relative = base.relativize(path).toString().replace(File.separatorChar, '/');
+                    entries.add(new Entry(path.toFile(), relative, directory,
+                            directory ? 0 : Files.size(path), readPermissions(path)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    public static Manifest manifest(List<File> roots, List<Entry> entries) {
+        long totalBytes = 0;
+        for (Entry entry : entries) {
+            totalBytes += entry.size;
+        }
+        String label = roots.size() == 1 ? roots.get(0).getName() : roots.size() + " items";
+        return new Manifest(label, entries.size(), totalBytes);
+    }
+
+    public static long send(Manifest manifest, List<Entry> entries, Socket socket,
+                            TransferEngine.ProgressListener listener) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+        writeManifest(dataOut, manifest);
+
+        byte[] buffer = new byte[AppConstants.BUFFER_SIZE];
+        long totalBytesSent = 0;
+        for (Entry entry : entries) {
+            writeRecord(dataOut, entry);
+            if (entry.directory) {
+                continue;
+            }
+
+            long fileStart = totalBytesSent;
+            if (entry.size >= AppConstants.BATCH_ZERO_COPY_THRESHOLD) {
+                dataOut.flush();
+                try (FileChannel fileChannel = FileChannel.open(entry.source.toPath(), StandardOpenOption.READ)) {
+                    TransferEngine.sendFile(fileChannel, 0, entry.size, socket, dataOut,
+                            sent -> listener.onProgress(fileStart + sent));
+                }
+            } else {
+                copyExactly(entry, dataOut, buffer);
+            }
+            totalBytesSent += entry.size;
+            listener.onProgress(totalBytesSent);
+        }
+        dataOut.writeByte(ENTRY_END);
+        dataOut.flush();
+
+        // The receiver confirms what it wrote once the whole batch is on disk
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        checkAck(dataIn, manifest);
+        return totalBytesSent;
+    }
+
+    static void writeManifest(DataOutputStream dataOut, Manifest manifest) throws IOException {
+        dataOut.writeUTF(AppConstants.HANDSHAKE_MESSAGE);
+        dataOut.writeByte(TransferHeader.KIND_BATCH);
+        dataOut.writeUTF(manifest.label);
+        dataOut.writeInt(manifest.entryCount);
+        dataOut.writeLong(manifest.totalBytes);
+    }
+
+    static void writeRecord(DataOutputStream dataOut, Entry entry) throws IOException {
+        dataOut.writeByte(entry.directory ? ENTRY_DIRECTORY : ENTRY_FILE);
+        dataOut.writeUTF(entry.path);
+        dataOut.writeInt(entry.permissions);
+        if (!entry.directory) {
+            dataOut.writeLong(entry.size);
+        }
+    }
+
+    static Record readRecord(DataInputStream dataIn) throws IOException {
+        byte type = dataIn.readByte();
+        if (type == ENTRY_END) {
+            return new Record(type, null, 0, 0);
+        }
+        if (type != ENTRY_DIRECTORY && type != ENTRY_FILE) {
+            throw new IOException("Invalid batch entry");
+        }
+        String path = dataIn.readUTF();
+        int permissions = dataIn.readInt();
+        long size = type == ENTRY_FILE ? dataIn.readLong() : 0;
+        if (size < 0) {
+            throw new IOException("Invalid batch entry");
+        }
+        return new Record(type, path, permissions, size);
+    }
+
+    static void writeAck(DataOutputStream dataOut, int entriesReceived, long totalBytesRead) throws IOException {
+        dataOut.writeInt(entriesReceived);
+        dataOut.writeLong(totalBytesRead);
+    }
+
+    static void checkAck(DataInputStream dataIn, Manifest manifest) throws IOException {
+        int filesReceived = dataIn.readInt();
+        long bytesReceived = dataIn.readLong();
+        if (filesReceived != manifest.entryCount || bytesReceived != manifest.totalBytes) {
+            throw new IOException("Incomplete file transfer");
+        }
+    }
+
+    private static void copyExactly(Entry entry, DataOutputStream dataOut, byte[] buffer) throws IOException {
+        try (InputStream in = new FileInputStream(entry.source)) {
+            long remaining = entry.size;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    throw new IOException("File was truncated during transfer");
+                }
+                dataOut.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        }
+    }
+
+    // Reads the manifest once TransferHeader.readKind returned KIND_BATCH
+    public static Manifest readManifest(DataInputStream in) throws IOException {
+        String label = in.readUTF();
+        int entryCount = in.readInt();
+        long totalBytes = in.readLong();
+        if (entryCount < 0 || totalBytes < 0) {
+            throw new IOException("Invalid batch header");
+        }
+        return new Manifest(label, entryCount, totalBytes);
+    }
+
+    /**
+     * Recreates the entries under baseDir. Entry paths are resolved against baseDir and any
+     * path escaping it is rejected. Returns the number of body bytes written.
+     */
+    public static long receive(Manifest manifest, Socket socket, TransferEngine.HeaderInputStream headerIn,
+                               File baseDir, TransferEngine.ProgressListener listener) throws IOException {
+        DataInputStream dataIn = new DataInputStream(headerIn);
+        Path base = baseDir.toPath().toAbsolutePath().normalize();
+        List<Path> directories = new ArrayList<>();
+        List<Integer> directoryPermissions = new ArrayList<>();
+        int entriesReceived = 0;
+        long totalBytesRead = 0;
+
+        Record record;
+        while ((record = readRecord(dataIn)).type != ENTRY_END) {
+            if (++entriesReceived > manifest.entryCount) {
+                throw new IOException("Invalid batch entry");
+            }
+            Path target = resolve(base, record.path);
+
+            if (record.type == ENTRY_DIRECTORY) {
+                Files.createDirectories(target);
+                makeWritable(target);
+                directories.add(target);
+                directoryPermissions.add(record.permissions);
+                continue;
+            }
+
+            long size = record.size;
+            Files.createDirectories(target.getParent());
+            makeWritable(target);
+            long fileStart = totalBytesRead;
+            long received;
+            try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                TransferEngine.ProgressListener fileListener = bytes -> listener.onProgress(fileStart + bytes);
+                received = size >= AppConstants.BATCH_ZERO_COPY_THRESHOLD
+                        ? TransferEngine.receiveFile(headerIn, socket, fileChannel, 0, size, fileListener)
+                        : TransferEngine.receiveBuffered(headerIn, fileChannel, 0, size, fileListener);
+            }
+            if (received != size) {
+                throw new IOException("Incomplete file transfer");
+            }
+            applyPermissions(target, record.permissions);
+            totalBytesRead += size;
+            listener.onProgress(totalBytesRead);
+        }
+
+        // Directories last, in case one of them is read-only
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            applyPermissions(directories.get(i), directoryPermissions.get(i));
+        }
+
+        DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        writeAck(dataOut, entriesReceived, totalBytesRead);
+        dataOut.flush();
+        return totalBytesRead;
+    }
+
+    static Path resolve(Path base, String relative) throws IOException {
+        Path target = base.resolve(relative.replace('/', File.separatorChar)).normalize();
+        if (relative.isEmpty() || !target.startsWith(base) || target.equals(base)) {
+            throw new IOException("Invalid path in batch: " + relative);
+        }
+        return target;
+    }
+
+    // Unix style mode bits; derived from the read/write/execute flags where POSIX is not supported
+    private static int readPermissions(Path path) {
+        try {
+            int mode = 0;
+            for (PosixFilePermission permission : Files.getPosixFilePermissions(path)) {
+                mode |= 1 << (8 - permission.ordinal());
+            }
+            return mode;
+        } catch (UnsupportedOperationException | IOException e) {
+            File file = path.toFile();
+            return (file.canRead() ? 0444 : 0) | (file.canWrite() ? 0200 : 0) | (file.canExecute() ? 0111 : 0);
+        }
+    }
+
+    /**
+     * Gives the owner write access to an existing file or folder, so one left read-only by an
+     * earlier batch can be written again. The mode it was sent with is applied after the write.
+     */
+    static void makeWritable(Path path) throws IOException {
+        if (Files.exists(path) && !Files.isWritable(path) && !path.toFile().setWritable(true, true)) {
+            throw new IOException("Cannot write to " + path);
+        }
+    }
+
+    static void applyPermissions(Path path, int mode) {
+        try {
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            for (PosixFilePermission permission : PosixFilePermission.values()) {
+                if ((mode & (1 << (8 - permission.ordinal()))) != 0) {
+                    permissions.add(permission);
+                }
+            }
+            Files.setPosixFilePermissions(path, permissions);
+        } catch (UnsupportedOperationException | IOException e) {
+            File file = path.toFile();
+            file.setExecutable((mode & 0100) != 0);
+            file.setWritable((mode & 0200) != 0);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sidecar kept next to a partially received file. Records, per byte range, how many bytes
+ * from the start of the range are safely on disk so an interrupted transfer can be resumed.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x4C534350; // "LSCP"
+    private static final String SUFFIX = ".letsshare";
+    public static final int HASH_LENGTH = 32;
+
+    private final File sidecar;
+    private final long fileSize;
+    private final boolean resumable;
+    // range offset -> {length, held}
+    private final Map<Long, long[]> ranges = new TreeMap<>();
+    private long lastSave = System.currentTimeMillis();
+
+    private Checkpoint(File sidecar, long fileSize, boolean resumable) {
+        this.sidecar = sidecar;
+        this.fileSize = fileSize;
+        this.resumable = resumable;
+    }
+
+    /**
+     * Loads the checkpoint for target if one exists for a partial file of the same size,
+     * otherwise starts an empty one.
+     */
+    public static Checkpoint open(File target, long fileSize) {
+        File sidecar = new File(target.getParentFile(), target.getName() + SUFFIX);
+        if (!sidecar.exists() || !target.exists() || target.length() != fileSize) {
+            return new Checkpoint(sidecar, fileSize, false);
+        }
+
+        Checkpoint checkpoint = new Checkpoint(sidecar, fileSize, true);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)))) {
+            if (in.readInt() != MAGIC || in.readLong() != fileSize) {
+                return new Checkpoint(sidecar, fileSize, false);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long offset = in.readLong();
+                long length = in.readLong();
+                long held = in.readLong();
+                checkpoint.ranges.put(offset, new long[] {length, Math.min(held, length)});
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring unreadable checkpoint: " + e.getMessage());
+            return new Checkpoint(sidecar, fileSize, false);
+        }
+        return checkpoint;
+    }
+
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    // Bytes already held at the start of the range, only if it was recorded with the same bounds
+    public synchronized long held(long offset, long length) {
+        long[] range = ranges.get(offset);
+        return (range != null && range[0] == length) ? range[1] : 0;
+    }
+
+    public synchronized void update(long offset, long length, long held) {
+        ranges.put(offset, new long[] {length, held});
+    }
+
+    // Saves at most once per CHECKPOINT_INTERVAL_MS, called from the receive loops
+    public void saveIfDue(FileChannel data) throws IOException {
+        if (claimSave()) {
+            save(data);
+        }
+    }
+
+    // True at most once per CHECKPOINT_INTERVAL_MS; the caller is then expected to save
+    public synchronized boolean claimSave() {
+        if (System.currentTimeMillis() - lastSave < AppConstants.CHECKPOINT_INTERVAL_MS) {
+            return false;
+        }
+        lastSave = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Forces the received data to disk before recording it, so the sidecar never claims bytes
+     * that could be lost, then replaces the sidecar atomically. Ranges save concurrently, so
+     * writing and moving the shared temp file happen under one lock.
+     */
+    public void save(FileChannel data) throws IOException {
+        data.force(false);
+        File temp = new File(sidecar.getParentFile(), sidecar.getName() + ".tmp");
+        synchronized (this) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(fileSize);
+                out.writeInt(ranges.size());
+                for (Map.Entry<Long, long[]> range : ranges.entrySet()) {
+                    out.writeLong(range.getKey());
+                    out.writeLong(range.getValue()[0]);
+                    out.writeLong(range.getValue()[1]);
+                }
+            }
+            Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    public void delete() {
+        if (sidecar.exists() && !sidecar.delete()) {
+            System.err.println("Could not delete checkpoint " + sidecar);
+        }
+    }
+
+    // The receiver's answer to a range header: the codec and verification it accepts, and the prefix it holds
+    public static class Offer {
+        private final byte codec;
+        private final boolean verify;
+        private final long held;
+        private final byte[][] hashes;
+
+        public Offer(byte codec, boolean verify, long held, byte[][] hashes) {
+            this.codec = codec;
+            this.verify = verify;
+            this.held = held;
+            this.hashes = hashes;
+        }
+
+        public byte getCodec() {
+            return codec;
+        }
+
+        public boolean isVerify() {
+            return verify;
+        }
+
+        public long getHeld() {
+            return held;
+        }
+
+        public byte[][] getHashes() {
+            return hashes;
+        }
+    }
+
+    public static void writeOffer(DataOutputStream out, Offer offer) throws IOException {
+        out.writeByte(offer.codec);
+        out.writeBoolean(offer.verify);
+        out.writeLong(offer.held);
+        out.writeInt(offer.hashes.length);
+        for (byte[] hash : offer.hashes) {
+            out.write(hash);
+        }
+    }
+
+    public static Offer readOffer(DataInputStream in, long rangeLength) throws IOException {
+        byte codec = in.readByte();
+        boolean verify = in.readBoolean();
+        long held = in.readLong();
+        int blockCount = in.readInt();
+        if (held < 0 || held > rangeLength
+                || blockCount != (held + AppConstants.RESUME_BLOCK_SIZE - 1) / AppConstants.RESUME_BLOCK_SIZE) {
+            throw new IOException("Invalid resume offer");
+        }
+        byte[][] hashes = new byte[blockCount][HASH_LENGTH];
+        for (byte[] hash : hashes) {
+            in.readFully(hash);
+        }
+        return new Offer(codec, verify, held, hashes);
+    }
+
+    /**
+     * Hashes length bytes from offset in blocks of RESUME_BLOCK_SIZE, so both sides can find
+     * the first block where their copies differ.
+     */
+    public static byte[][] hashBlocks(FileChannel channel, long offset, long length) throws IOException {
+        MessageDigest digest = newDigest();
+        int blockCount = (int) ((length + AppConstants.RESUME_BLOCK_SIZE - 1) / AppConstants.RESUME_BLOCK_SIZE);
+        byte[][] hashes = new byte[blockCount][];
+        ByteBuffer buffer = BufferPool.SHARED.acquire();
+        try {
+            for (int block = 0; block < blockCount; block++) {
+                long start = offset + (long) block * AppConstants.RESUME_BLOCK_SIZE;
+                long end = Math.min(start + AppConstants.RESUME_BLOCK_SIZE, offset + length);
+                long position = start;
+                while (position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    int bytesRead = channel.read(buffer, position);
+                    if (bytesRead == -1) {
+                        throw new IOException("File is shorter than the checkpoint");
+                    }
+                    buffer.flip();
+                    digest.update(buffer);
+                    position += bytesRead;
+                }
+                hashes[block] = digest.digest();
+            }
+        } finally {
+            BufferPool.SHARED.release(buffer);
+        }
+        return hashes;
+    }
+
+    // Length of the prefix whose blocks match the receiver's hashes
+    public static long verifiedPrefix(FileChannel channel, long offset, long held, byte[][] remote) throws IOException {
+        byte[][] local = hashBlocks(channel, offset, held);
+        if (local.length != remote.length) {
+            return 0;
+        }
+        for (int block = 0; block < local.length; block++) {
+            if (!Arrays.equals(local[block], remote[block])) {
+                return (long) block * AppConstants.RESUME_BLOCK_SIZE;
+            }
+        }
+        return held;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
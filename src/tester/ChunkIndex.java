@@ -0,0 +1,174 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent map from chunk hash to where the receiver already holds that content: a file in
+ * the save folder and an offset in it. Kept as an append-only log next to the received files
+ * and rewritten when most of it is superseded. Entries can go stale when a file changes, so
+ * callers verify the bytes against the hash before using them.
+ */
+public class ChunkIndex {
+    private static final int MAGIC = 0x4C534349; // "LSCI"
+    private static final String FILE_NAME = ".letsshare-chunks";
+    private static final Map<File, ChunkIndex> OPEN = new HashMap<>();
+
+    // Where one chunk's bytes live, relative to the save folder
+    public static class Location {
+        private final String name;
+        private final long offset;
+        private final int length;
+
+        Location(String name, long offset, int length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    // Hash bytes as a map key
+    private static class Key {
+        private final byte[] hash;
+        private final int hashCode;
+
+        Key(byte[] hash) {
+            this.hash = hash;
+            this.hashCode = Arrays.hashCode(hash);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key key && Arrays.equals(hash, key.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final File directory;
+    private final File log;
+    private final Map<Key, Location> chunks = new HashMap<>();
+    private long logEntries;
+
+    private ChunkIndex(File directory) {
+        this.directory = directory;
+        this.log = new File(directory, FILE_NAME);
+        load();
+    }
+
+    // One index per save folder, shared by every session writing into it
+    public static synchronized ChunkIndex forDirectory(File directory) {
+        return OPEN.computeIfAbsent(directory.getAbsoluteFile(), ChunkIndex::new);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized Location get(byte[] hash) {
+        return chunks.get(new Key(hash));
+    }
+
+    // Forgets an entry whose bytes no longer match
+    public synchronized void remove(byte[] hash, Location location) {
+        chunks.remove(new Key(hash), location);
+    }
+
+    /**
+     * Records every chunk of a file that was just written under name. Earlier entries for the
+     * same hash are replaced, so the newest copy is preferred.
+     */
+    public synchronized void addAll(String name, List<DedupTransfer.Chunk> fileChunks) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)))) {
+            if (log.length() == 0) {
+                out.writeInt(MAGIC);
+            }
+            for (DedupTransfer.Chunk chunk : fileChunks) {
+                Location location = new Location(name, chunk.getOffset(), chunk.getLength());
+                chunks.put(new Key(chunk.getHash()), location);
+                writeEntry(out, chunk.getHash(), location);
+                logEntries++;
+            }
+        }
+        if (logEntries > 2L * chunks.size() + AppConstants.CHUNK_INDEX_COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    private void load() {
+        if (!log.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)))) {
+            if (in.readInt() != MAGIC) {
+                System.err.println("Ignoring unreadable chunk index " + log);
+                return;
+            }
+            while (true) {
+                byte[] hash = new byte[Integrity.DIGEST_LENGTH];
+                try {
+                    in.readFully(hash);
+                } catch (EOFException e) {
+                    break;
+                }
+                String name = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                chunks.put(new Key(hash), new Location(name, offset, length));
+                logEntries++;
+            }
+        } catch (EOFException e) {
+            // A torn last entry from a crash; everything before it is still good
+        } catch (IOException e) {
+            System.err.println("Could not read chunk index: " + e.getMessage());
+        }
+    }
+
+    // Rewrites the log with live entries only, replacing it atomically
+    private void compact() throws IOException {
+        File temp = new File(directory, FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<Key, Location> entry : chunks.entrySet()) {
+                writeEntry(out, entry.getKey().hash, entry.getValue());
+            }
+        }
+        Files.move(temp.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logEntries = chunks.size();
+    }
+
+    private static void writeEntry(DataOutputStream out, byte[] hash, Location location) throws IOException {
+        out.write(hash);
+        out.writeUTF(location.name);
+        out.writeLong(location.offset);
+        out.writeInt(location.length);
+    }
+}
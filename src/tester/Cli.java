@@ -0,0 +1,318 @@
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command-line sender and receive daemon on the same engine as the windows, for machines
+ * without a display and for scripted transfers. Nothing here touches Swing. ApplicationGUI
+ * hands over to it when started with arguments. The exit status is 0 when the send or
+ * self-test went through, 1 when it failed and 2 for a bad command line.
+ */
+public class Cli {
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage:",
+            "  send <host> <file or folder>... [--port n] [--streams n] [--limit MB/s] [--compress] [--verify]",
+            "       [--delta] [--dedup] [--nio] [--mapped] [--quiet] [--metrics-port n]",
+            "  receive [--dir folder] [--port n] [--sessions n] [--limit MB/s] [--nio] [--mapped] [--metrics-port n]",
+            "  selftest [host] [--port n] [--dir folder] [--file file] [--size MB] [--streams n] [--nio] [--verify]",
+            "  selftest --serve [--port n] [--nio]");
+    private static final Set<String> VALUE_OPTIONS = Set.of("--port", "--streams", "--limit", "--dir", "--sessions",
+            "--metrics-port", "--file", "--size");
+    private static final Set<String> SEND_FLAGS = Set.of("--compress", "--verify", "--delta", "--dedup", "--nio",
+            "--mapped", "--quiet");
+    private static final Set<String> RECEIVE_FLAGS = Set.of("--nio", "--mapped");
+    private static final Set<String> SELFTEST_FLAGS = Set.of("--nio", "--verify", "--serve");
+
+    private final List<String> arguments = new ArrayList<>();
+    private final Map<String, String> values = new HashMap<>();
+    private final Set<String> flags = new HashSet<>();
+
+    private Cli(String[] args, Set<String> allowedFlags) {
+        for (int i = 0; i < args.length; i++) {
+            if (VALUE_OPTIONS.contains(args[i])) {
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException(args[i] + " needs a value");
+                }
+                values.put(args[i], args[++i]);
+            } else if (allowedFlags.contains(args[i])) {
+                flags.add(args[i]);
+            } else if (args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        String[] rest = Arrays.copyOfRange(args, 1, args.length);
+        try {
+            if (args[0].equals("send")) {
+                System.exit(new Cli(rest, SEND_FLAGS).send());
+            } else if (args[0].equals("receive")) {
+                new Cli(rest, RECEIVE_FLAGS).receive();
+            } else if (args[0].equals("selftest")) {
+                Cli cli = new Cli(rest, SELFTEST_FLAGS);
+                if (cli.flags.contains("--serve")) {
+                    cli.serveSelfTests();
+                } else {
+                    System.exit(cli.selfTest());
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown command " + args[0]);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+    private int send() throws IOException {
+        if (arguments.size() < 2) {
+            throw new IllegalArgumentException("send needs a host and at least one file or folder");
+        }
+        List<File> files = new ArrayList<>();
+        for (String path : arguments.subList(1, arguments.size())) {
+            File file = new File(path);
+            if (!file.exists()) {
+                throw new IllegalArgumentException("No such file or folder: " + path);
+            }
+            files.add(file);
+        }
+        startMetrics();
+
+        Sender sender = Sender.connect(arguments.get(0), getInt("--port", AppConstants.SERVER_PORT),
+                new RateLimiter(getBytesPerSecond(), RateLimiter.SEND));
+        sender.setStreams(Math.max(1, Math.min(AppConstants.MAX_STREAMS, getInt("--streams", AppConstants.DEFAULT_STREAMS))));
+        sender.setCompress(flags.contains("--compress"));
+        sender.setVerify(flags.contains("--verify"));
+        sender.setDelta(flags.contains("--delta"));
+        sender.setDedup(flags.contains("--dedup"));
+        sender.setNio(flags.contains("--nio"));
+        sender.setMapped(flags.contains("--mapped"));
+
+        Thread reporter = null;
+        if (!flags.contains("--quiet")) {
+            reporter = Thread.ofPlatform().name("letsshare-cli-progress").daemon().start(() -> reportProgress(sender));
+        }
+        try {
+            TransferSession session = sender.send(files);
+            System.out.println("Sent " + session.getName() + " (" + getReadableFileSize(session.getTotalBytes())
+                    + ") to " + session.getPeer() + " in " + formatDuration(session.getDurationMs()) + ", "
+                    + getReadableFileSize(session.getAverageSpeed()) + "/s");
+            return 0;
+        } catch (Exception e) {
+            System.err.println("Send failed: " + (e.getMessage() != null ? e.getMessage() : e));
+            return 1;
+        } finally {
+            if (reporter != null) {
+                reporter.interrupt();
+            }
+        }
+    }
+
+    private void reportProgress(Sender sender) {
+        try {
+            while (true) {
+                Thread.sleep(AppConstants.CLI_REPORT_MS);
+                TransferSession session = sender.getSession();
+                if (session != null && session.isActive()) {
+                    System.err.printf("%3d%% %s/%s - %s/s%n", session.getPercentage(),
+                            getReadableFileSize(session.getTransferred()), getReadableFileSize(session.getTotalBytes()),
+                            getReadableFileSize(session.getSpeed()));
+                }
+            }
+        } catch (InterruptedException e) {
+            // The send is over
+        }
+    }
+
+    // Runs until the process is stopped, printing a line as each session starts and ends
+    private void receive() throws IOException, InterruptedException {
+        if (!arguments.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected argument " + arguments.get(0));
+        }
+        File saveDir = values.containsKey("--dir") ? new File(values.get("--dir")) : TransferServer.defaultSaveDir();
+        if (!saveDir.isDirectory() && !saveDir.mkdirs()) {
+            throw new IOException("Cannot create " + saveDir);
+        }
+        int port = getInt("--port", AppConstants.SERVER_PORT);
+        startMetrics();
+        TransferServer server = TransferServer.create(saveDir,
+                Math.max(1, getInt("--sessions", AppConstants.DEFAULT_MAX_SESSIONS)), getBytesPerSecond(),
+                flags.contains("--nio"), flags.contains("--mapped"));
+        server.start(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        System.out.println("Listening on port " + port + ", saving to " + saveDir.getAbsolutePath());
+
+        Set<TransferSession> announced = new HashSet<>();
+        while (true) {
+            Thread.sleep(AppConstants.CLI_REPORT_MS);
+            for (TransferSession session : server.getSessions()) {
+                if (session.getState() == TransferSession.State.TRANSFERRING && announced.add(session)) {
+                    System.out.println("Receiving " + session.getName() + " (" + getReadableFileSize(session.getTotalBytes())
+                            + ") from " + session.getPeer());
+                }
+            }
+            for (TransferSession session : server.clearFinishedSessions()) {
+                announced.remove(session);
+                if (session.getState() == TransferSession.State.COMPLETED) {
+                    System.out.println("Received " + session.getName() + " (" + getReadableFileSize(session.getTotalBytes())
+                            + ") from " + session.getPeer() + " in " + formatDuration(session.getDurationMs()) + ", "
+                            + getReadableFileSize(session.getAverageSpeed()) + "/s");
+                } else {
+                    System.out.println("Failed " + session.getName() + " from " + session.getPeer() + ": "
+                            + session.getMessage());
+                }
+            }
+        }
+    }
+
+    // Disk, socket and transfer throughput over loopback, or against a host running selftest --serve
+    private int selfTest() throws IOException {
+        if (arguments.size() > 1) {
+            throw new IllegalArgumentException("Unexpected argument " + arguments.get(1));
+        }
+        File folder = values.containsKey("--dir") ? new File(values.get("--dir")) : TransferServer.defaultSaveDir();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Cannot create " + folder);
+        }
+        SelfTest test = arguments.isEmpty() ? SelfTest.loopback(folder)
+                : SelfTest.peer(arguments.get(0), getInt("--port", AppConstants.SERVER_PORT), folder);
+        if (values.containsKey("--file")) {
+            File file = new File(values.get("--file"));
+            if (!file.isFile()) {
+                throw new IllegalArgumentException("No such file: " + file);
+            }
+            test.setFile(file);
+        }
+        if (values.containsKey("--size")) {
+            int size = getInt("--size", 0);
+            if (size <= 0) {
+                throw new IllegalArgumentException("--size needs a positive number of MB");
+            }
+            test.setSize(size * 1024L * 1024L);
+        }
+        test.setStreams(Math.max(1, Math.min(AppConstants.MAX_STREAMS, getInt("--streams", AppConstants.DEFAULT_STREAMS))));
+        test.setNio(flags.contains("--nio"));
+        test.setVerify(flags.contains("--verify"));
+
+        System.out.println("Self-test " + (test.isLoopback() ? "over loopback" : "against " + arguments.get(0))
+                + ", disk stages in " + folder.getAbsolutePath());
+        try {
+            for (String line : test.run().describe()) {
+                System.out.println(line);
+            }
+            if (!test.isLoopback()) {
+                System.out.println("The peer's disk is not measured from here; run selftest there for it");
+            }
+            return 0;
+        } catch (Exception e) {
+            System.err.println("Self-test failed: " + (e.getMessage() != null ? e.getMessage() : e));
+            return 1;
+        }
+    }
+
+    // The far end of a self-test from another machine: receives into a scratch folder and keeps nothing
+    private void serveSelfTests() throws IOException, InterruptedException {
+        if (!arguments.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected argument " + arguments.get(0));
+        }
+        int port = getInt("--port", AppConstants.SERVER_PORT);
+        Path scratch = Files.createTempDirectory("letsshare-selftest").toAbsolutePath().normalize();
+        TransferServer server = TransferServer.create(scratch.toFile(), AppConstants.DEFAULT_MAX_SESSIONS, 0,
+                flags.contains("--nio"), false);
+        server.start(port);
+        ServerSocket discard = SelfTest.startDiscard(new InetSocketAddress(port + 1));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            try {
+                discard.close();
+                SelfTest.deleteTree(scratch);
+            } catch (IOException e) {
+                System.err.println("Could not remove " + scratch + ": " + e.getMessage());
+            }
+        }));
+        System.out.println("Serving self-tests on ports " + port + " and " + (port + 1));
+
+        while (true) {
+            Thread.sleep(AppConstants.CLI_REPORT_MS);
+            for (TransferSession session : server.clearFinishedSessions()) {
+                try {
+                    removeReceived(scratch, session.getName());
+                } catch (IOException | InvalidPathException e) {
+                    System.err.println("Could not remove " + session.getName() + ": " + e.getMessage());
+                }
+                System.out.println("Self-test from " + session.getPeer() + ": "
+                        + getReadableFileSize(session.getAverageSpeed()) + "/s, " + session.getMessage());
+            }
+        }
+    }
+
+    // The name comes from the peer, a file or a batch folder; nothing outside scratch is touched
+    private static void removeReceived(Path scratch, String name) throws IOException {
+        Path target = scratch.resolve(name).normalize();
+        if (!target.startsWith(scratch) || target.equals(scratch)) {
+            throw new IOException("not inside " + scratch);
+        }
+        SelfTest.deleteTree(target);
+    }
+
+    // Serves the text metrics on loopback for as long as the command runs
+    private void startMetrics() throws IOException {
+        if (values.containsKey("--metrics-port")) {
+            Metrics.startEndpoint(getInt("--metrics-port", 0));
+        }
+    }
+
+    private int getInt(String option, int defaultValue) {
+        String value = values.get(option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a number, not " + value);
+        }
+    }
+
+    // --limit in MB/s as in the windows, 0 or absent for unlimited
+    private long getBytesPerSecond() {
+        return Math.max(0, getInt("--limit", 0)) * 1024L * 1024L;
+    }
+
+    private static String formatDuration(long durationMs) {
+        return String.format("%.1f s", durationMs / 1000.0);
+    }
+
+    private static String getReadableFileSize(long bytes) {
+        if (bytes <= 0) return "0 B";
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int digitGroups = (int) (Math.log10(bytes) / Math.log10(1024));
+        return String.format("%.2f %s", bytes / Math.pow(1024, digitGroups), units[digitGroups]);
+    }
+}
@@ -0,0 +1,230 @@
+package tester;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression stage for file ranges. The body is cut into blocks that worker threads
+ * compress (or inflate) while the connection thread moves the previous ones over the network.
+ * Each block is sampled first and sent stored when it would not shrink, so already compressed
+ * content such as zip, jpg or mp4 costs almost no CPU.
+ *
+ * Block format: byte type, int raw length, int wire length, the CRC32C of the raw bytes when
+ * the range is verified, then the wire bytes. A verified range ends with its Integrity digest.
+ */
+public class Compression {
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+
+    private static final byte BLOCK_STORED = 0;
+    private static final byte BLOCK_DEFLATED = 1;
+
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            Thread.ofPlatform().name("letsshare-compress-", 0).daemon().factory());
+    private static final ThreadLocal<Deflater> DEFLATER =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private static class Block {
+        private final byte type;
+        private final byte[] raw;
+        private final int crc;
+        private final byte[] data;
+        private final int length;
+
+        Block(byte type, byte[] raw, int crc, byte[] data, int length) {
+            this.type = type;
+            this.raw = raw;
+            this.crc = crc;
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    private Compression() {
+    }
+
+    public static boolean isSupported(byte codec) {
+        return codec == CODEC_NONE || codec == CODEC_DEFLATE;
+    }
+
+    /**
+     * Sends count bytes of source from position as compressed blocks, keeping up to
+     * COMPRESSION_WINDOW blocks in flight on the workers. Reports raw bytes sent.
+     */
+    public static long send(FileChannel source, long position, long count, boolean verify, DataOutputStream out,
+                            TransferEngine.ProgressListener listener) throws IOException {
+        Deque<Future<Block>> pending = new ArrayDeque<>();
+        long next = position;
+        long end = position + count;
+        long sent = 0;
+        try (Integrity integrity = new Integrity()) {
+            while (next < end || !pending.isEmpty()) {
+                while (next < end && pending.size() < AppConstants.COMPRESSION_WINDOW) {
+                    long blockPosition = next;
+                    int rawLength = (int) Math.min(AppConstants.COMPRESSION_BLOCK_SIZE, end - next);
+                    pending.add(WORKERS.submit(() -> compressBlock(source, blockPosition, rawLength, verify)));
+                    next += rawLength;
+                }
+
+                Block block = Integrity.await(pending.poll());
+                out.writeByte(block.type);
+                out.writeInt(block.raw.length);
+                out.writeInt(block.length);
+                if (verify) {
+                    integrity.update(block.raw, block.raw.length);
+                    out.writeInt(block.crc);
+                }
+                out.write(block.data, 0, block.length);
+                sent += block.raw.length;
+                listener.onProgress(sent);
+            }
+            if (verify) {
+                out.write(integrity.finish());
+            }
+            out.flush();
+            return sent;
+        } finally {
+            cancel(pending);
+        }
+    }
+
+    /**
+     * Reads compressed blocks until count raw bytes have arrived and writes them at position.
+     * Progress only covers the contiguous prefix already on disk, so checkpoints stay exact.
+     */
+    public static long receive(DataInputStream in, FileChannel target, long position, long count, boolean verify,
+                               TransferEngine.ProgressListener listener) throws IOException {
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        long read = 0;
+        long written = 0;
+        try (Integrity integrity = new Integrity()) {
+            while (read < count) {
+                byte type = in.readByte();
+                int rawLength = in.readInt();
+                int length = in.readInt();
+                if ((type != BLOCK_STORED && type != BLOCK_DEFLATED) || rawLength <= 0
+                        || rawLength > AppConstants.COMPRESSION_BLOCK_SIZE || rawLength > count - read
+                        || length <= 0 || length > rawLength || (type == BLOCK_STORED && length != rawLength)) {
+                    throw new IOException("Invalid compressed block");
+                }
+                Integer crc = verify ? in.readInt() : null;
+                byte[] data = new byte[length];
+                in.readFully(data);
+
+                long blockPosition = position + read;
+                pending.add(WORKERS.submit(() -> writeBlock(type, data, rawLength, crc, target, blockPosition)));
+                read += rawLength;
+
+                while (!pending.isEmpty() && (pending.size() >= AppConstants.COMPRESSION_WINDOW || pending.peek().isDone())) {
+                    written += written(pending.poll(), verify, integrity);
+                    listener.onProgress(written);
+                }
+            }
+            while (!pending.isEmpty()) {
+                written += written(pending.poll(), verify, integrity);
+                listener.onProgress(written);
+            }
+            if (verify) {
+                byte[] expected = new byte[Integrity.DIGEST_LENGTH];
+                in.readFully(expected);
+                Integrity.checkDigest(expected, integrity.finish());
+            }
+            return written;
+        } finally {
+            cancel(pending);
+        }
+    }
+
+    // Blocks already running finish on their own: interrupting a worker would close the range's shared FileChannel
+    private static void cancel(Deque<? extends Future<?>> pending) {
+        for (Future<?> block : pending) {
+            block.cancel(false);
+        }
+    }
+
+    // Blocks complete in order here, which is the order the digest needs
+    private static int written(Future<byte[]> block, boolean verify, Integrity integrity) throws IOException {
+        byte[] raw = Integrity.await(block);
+        if (verify) {
+            integrity.update(raw, raw.length);
+        }
+        return raw.length;
+    }
+
+    private static Block compressBlock(FileChannel source, long position, int rawLength, boolean verify)
+            throws IOException {
+        byte[] raw = new byte[rawLength];
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File was truncated during transfer");
+            }
+        }
+
+        int crc = verify ? Integrity.crc(raw, rawLength) : 0;
+        Deflater deflater = DEFLATER.get();
+        // Only pay for the whole block when a sample of it actually shrinks
+        int sampleLength = Math.min(rawLength, AppConstants.COMPRESSION_SAMPLE_SIZE);
+        byte[] sample = new byte[sampleLength];
+        if (deflate(deflater, raw, sampleLength, sample) > sampleLength * AppConstants.COMPRESSION_MAX_RATIO) {
+            return new Block(BLOCK_STORED, raw, crc, raw, rawLength);
+        }
+
+        byte[] compressed = new byte[rawLength];
+        int length = deflate(deflater, raw, rawLength, compressed);
+        if (length >= rawLength) {
+            return new Block(BLOCK_STORED, raw, crc, raw, rawLength);
+        }
+        return new Block(BLOCK_DEFLATED, raw, crc, compressed, length);
+    }
+
+    // Returns the compressed length, or more than output can hold if it did not fit
+    private static int deflate(Deflater deflater, byte[] input, int length, byte[] output) {
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        int written = deflater.deflate(output, 0, output.length);
+        return deflater.finished() ? written : output.length + 1;
+    }
+
+    // Checks the block against its CRC before it reaches the file, so corruption fails right away
+    private static byte[] writeBlock(byte type, byte[] data, int rawLength, Integer crc, FileChannel target,
+                                     long position) throws IOException {
+        byte[] raw = data;
+        if (type == BLOCK_DEFLATED) {
+            raw = new byte[rawLength];
+            Inflater inflater = INFLATER.get();
+            inflater.reset();
+            inflater.setInput(data);
+            try {
+                if (inflater.inflate(raw) != rawLength || !inflater.finished()) {
+                    throw new IOException("Invalid compressed block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed block", e);
+            }
+        }
+        if (crc != null) {
+            Integrity.checkChunk(crc, Integrity.crc(raw, rawLength), position);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        while (buffer.hasRemaining()) {
+            target.write(buffer, position + buffer.position());
+        }
+        return raw;
+    }
+}
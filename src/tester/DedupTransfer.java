@@ -0,0 +1,354 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Deduplicated transfer of files that share content with anything the receiver already holds.
+ * The sender cuts the file into content-defined chunks with a gear rolling hash, so an insert
+ * only moves the boundaries around it, and announces the SHA-256 of every chunk. The receiver
+ * looks each one up in its ChunkIndex, copies the ones it can find (after checking their bytes
+ * still match) and asks only for the rest.
+ *
+ * Wire format after the handshake and KIND_DEDUP: long fileSize, UTF fileName, int chunkCount,
+ * then int length and the hash of each chunk. The receiver answers with a bitmap of the chunks
+ * it needs, the sender sends their bytes in order, and the receiver acknowledges with the
+ * length written.
+ */
+public class DedupTransfer {
+    private static final String TEMP_SUFFIX = ".letsshare-dedup";
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed seed: both ends must cut the same content at the same places
+        SplittableRandom random = new SplittableRandom(0x4C65747353686172L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    // One content-defined piece of a file
+    public static class Chunk {
+        private final long offset;
+        private final int length;
+        private final byte[] hash;
+
+        Chunk(long offset, int length, byte[] hash) {
+            this.offset = offset;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+    }
+
+    // What the sender announced, read by the receiver after the kind byte
+    public static class Request {
+        private final long fileSize;
+        private final String fileName;
+        private final List<Chunk> chunks;
+
+        Request(long fileSize, String fileName, List<Chunk> chunks) {
+            this.fileSize = fileSize;
+            this.fileName = fileName;
+            this.chunks = chunks;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    private DedupTransfer() {
+    }
+
+    /**
+     * Splits the file into chunks. A boundary falls where the top DEDUP_CHUNK_BITS of the gear
+     * hash are zero, but never before DEDUP_MIN_CHUNK_SIZE nor after DEDUP_MAX_CHUNK_SIZE bytes.
+     */
+    static List<Chunk> chunk(InputStream in, long fileSize) throws IOException {
+        long mask = -1L << (64 - AppConstants.DEDUP_CHUNK_BITS);
+        List<Chunk> chunks = new ArrayList<>();
+        MessageDigest digest = Checkpoint.newDigest();
+        byte[] buffer = new byte[AppConstants.DIRECT_BUFFER_SIZE];
+        long offset = 0;
+        int length = 0;
+        long hash = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                length++;
+                if ((length >= AppConstants.DEDUP_MIN_CHUNK_SIZE && (hash & mask) == 0)
+                        || length >= AppConstants.DEDUP_MAX_CHUNK_SIZE) {
+                    digest.update(buffer, start, i + 1 - start);
+                    chunks.add(new Chunk(offset, length, digest.digest()));
+                    offset += length;
+                    length = 0;
+                    hash = 0;
+                    start = i + 1;
+                }
+            }
+            digest.update(buffer, start, n - start);
+        }
+        if (length > 0) {
+            chunks.add(new Chunk(offset, length, digest.digest()));
+            offset += length;
+        }
+        if (chunks.size() > AppConstants.DEDUP_MAX_CHUNKS) {
+            throw new IOException("File is too large to deduplicate");
+        }
+        if (offset != fileSize) {
+            throw new IOException("File changed during transfer");
+        }
+        return chunks;
+    }
+
+    /**
+     * Sends file, skipping every chunk the receiver already holds, and returns the number of
+     * bytes that had to cross the network.
+     */
+    public static long send(File file, Socket socket, TransferEngine.ProgressListener listener) throws IOException {
+        long fileSize = file.length();
+        List<Chunk> chunks;
+        try (InputStream in = new FileInputStream(file)) {
+            chunks = chunk(in, fileSize);
+        }
+
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+        dataOut.writeUTF(AppConstants.HANDSHAKE_MESSAGE);
+        dataOut.writeByte(TransferHeader.KIND_DEDUP);
+        dataOut.writeLong(fileSize);
+        dataOut.writeUTF(file.getName());
+        dataOut.writeInt(chunks.size());
+        for (Chunk chunk : chunks) {
+            dataOut.writeInt(chunk.length);
+            dataOut.write(chunk.hash);
+        }
+        dataOut.flush();
+
+        DataInputStream dataIn = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+        BitSet needed;
+        int timeout = socket.getSoTimeout();
+        // The receiver reads and checks every chunk it already holds before answering
+        socket.setSoTimeout(AppConstants.RESUME_VERIFY_TIMEOUT);
+        try {
+            byte[] bitmap = new byte[(chunks.size() + 7) / 8];
+            dataIn.readFully(bitmap);
+            needed = BitSet.valueOf(bitmap);
+            needed.clear(chunks.size(), bitmap.length * 8);
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+
+        long progress = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!needed.get(i)) {
+                progress += chunks.get(i).length;
+            }
+        }
+        listener.onSkipped(progress);
+
+        long sent = 0;
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            byte[] data = new byte[AppConstants.DEDUP_MAX_CHUNK_SIZE];
+            for (int i = needed.nextSetBit(0); i >= 0; i = needed.nextSetBit(i + 1)) {
+                Chunk chunk = chunks.get(i);
+                readFully(source, chunk.offset, data, chunk.length);
+                dataOut.write(data, 0, chunk.length);
+                sent += chunk.length;
+                progress += chunk.length;
+                listener.onProgress(progress);
+            }
+        }
+        dataOut.flush();
+
+        socket.setSoTimeout(AppConstants.RESUME_VERIFY_TIMEOUT);
+        try {
+            if (dataIn.readLong() != fileSize) {
+                throw new IOException("Incomplete file transfer");
+            }
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+        return sent;
+    }
+
+    public static Request readRequest(DataInputStream in) throws IOException {
+        long fileSize = in.readLong();
+        String fileName = in.readUTF();
+        int chunkCount = in.readInt();
+        if (fileSize < 0 || chunkCount < 0 || chunkCount > AppConstants.DEDUP_MAX_CHUNKS) {
+            throw new IOException("Invalid transfer header");
+        }
+        List<Chunk> chunks = new ArrayList<>(chunkCount);
+        long offset = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            int length = in.readInt();
+            if (length <= 0 || length > AppConstants.DEDUP_MAX_CHUNK_SIZE || length > fileSize - offset) {
+                throw new IOException("Invalid transfer header");
+            }
+            byte[] hash = new byte[Integrity.DIGEST_LENGTH];
+            in.readFully(hash);
+            chunks.add(new Chunk(offset, length, hash));
+            offset += length;
+        }
+        if (offset != fileSize) {
+            throw new IOException("Invalid transfer header");
+        }
+        return new Request(fileSize, fileName, chunks);
+    }
+
+    /**
+     * Builds the file in a temporary copy: chunks found through the index of saveDir are
+     * copied locally, the rest are requested from the sender and checked against their hash.
+     * The copy then replaces any old version and its chunks are indexed. Returns its size.
+     */
+    public static long receive(Request request, Socket socket, InputStream headerIn, File saveDir,
+                               TransferEngine.ProgressListener listener) throws IOException {
+        // Only the last path element, so a crafted name cannot escape the save folder
+        File target = new File(saveDir, new File(request.fileName).getName());
+        File temp = new File(saveDir, target.getName() + TEMP_SUFFIX);
+        ChunkIndex index = ChunkIndex.forDirectory(saveDir);
+        List<Chunk> chunks = request.chunks;
+        DataInputStream dataIn = new DataInputStream(headerIn);
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+
+        try (FileChannel output = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            byte[] data = new byte[AppConstants.DEDUP_MAX_CHUNK_SIZE];
+            BitSet needed = new BitSet(chunks.size());
+            // Repeats inside this file are fetched once and copied from their first occurrence
+            Map<ByteBuffer, Integer> first = new HashMap<>();
+            int[] copyOf = new int[chunks.size()];
+            long written = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                copyOf[i] = -1;
+                Integer earlier = first.putIfAbsent(ByteBuffer.wrap(chunk.hash), i);
+                if (earlier != null) {
+                    copyOf[i] = earlier;
+                } else if (copyLocal(index, chunk, output, data)) {
+                    written += chunk.length;
+                    listener.onSkipped(written);
+                } else {
+                    needed.set(i);
+                }
+            }
+            byte[] bitmap = new byte[(chunks.size() + 7) / 8];
+            byte[] set = needed.toByteArray();
+            System.arraycopy(set, 0, bitmap, 0, set.length);
+            dataOut.write(bitmap);
+            dataOut.flush();
+
+            for (int i = needed.nextSetBit(0); i >= 0; i = needed.nextSetBit(i + 1)) {
+                Chunk chunk = chunks.get(i);
+                dataIn.readFully(data, 0, chunk.length);
+                Integrity.checkDigest(chunk.hash, hash(data, chunk.length));
+                write(output, chunk.offset, data, chunk.length);
+                written += chunk.length;
+                listener.onProgress(written);
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                if (copyOf[i] >= 0) {
+                    Chunk chunk = chunks.get(i);
+                    readFully(output, chunks.get(copyOf[i]).offset, data, chunk.length);
+                    write(output, chunk.offset, data, chunk.length);
+                    written += chunk.length;
+                    listener.onSkipped(written);
+                }
+            }
+            output.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index.addAll(target.getName(), chunks);
+        dataOut.writeLong(request.fileSize);
+        dataOut.flush();
+        return request.fileSize;
+    }
+
+    // Copies a chunk from wherever the index says it is, if those bytes still hash the same
+    private static boolean copyLocal(ChunkIndex index, Chunk chunk, FileChannel output, byte[] data)
+            throws IOException {
+        ChunkIndex.Location location = index.get(chunk.hash);
+        if (location == null || location.getLength() != chunk.length) {
+            return false;
+        }
+        File source = new File(index.getDirectory(), location.getName());
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            readFully(channel, location.getOffset(), data, chunk.length);
+        } catch (IOException e) {
+            index.remove(chunk.hash, location);
+            return false;
+        }
+        if (!MessageDigest.isEqual(chunk.hash, hash(data, chunk.length))) {
+            index.remove(chunk.hash, location);
+            return false;
+        }
+        write(output, chunk.offset, data, chunk.length);
+        return true;
+    }
+
+    private static byte[] hash(byte[] data, int length) {
+        MessageDigest digest = Checkpoint.newDigest();
+        digest.update(data, 0, length);
+        return digest.digest();
+    }
+
+    private static void write(FileChannel output, long position, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            output.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] data, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File was truncated during transfer");
+            }
+        }
+    }
+}
@@ -0,0 +1,473 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * rsync-style delta sync for a new version of a file the receiver already has under the same
+ * name. The receiver sends a signature of its copy: a rolling weak checksum and a strong hash
+ * per block. The sender rolls the weak checksum over its file one byte at a time and answers
+ * with copy instructions for blocks found in the old copy and literal bytes for everything
+ * else. The receiver rebuilds the file next to the old one, checks the digest of the result
+ * and swaps it in.
+ *
+ * Wire format after the handshake and KIND_DELTA: long fileSize, UTF fileName. The receiver
+ * answers int blockSize, int blockCount, then int weak and STRONG_LENGTH bytes per block.
+ * The sender streams COPY (int first block, int count), LITERAL (int length, bytes) and END,
+ * followed by the SHA-256 of the new file. The receiver acknowledges with the length written.
+ */
+public class DeltaTransfer {
+    private static final byte OP_END = 0;
+    private static final byte OP_COPY = 1;
+    private static final byte OP_LITERAL = 2;
+    private static final int STRONG_LENGTH = 16;
+    private static final String TEMP_SUFFIX = ".letsshare-delta";
+
+    // What the sender asked for, read by the receiver after the kind byte
+    public static class Request {
+        private final long fileSize;
+        private final String fileName;
+
+        Request(long fileSize, String fileName) {
+            this.fileSize = fileSize;
+            this.fileName = fileName;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+    }
+
+    // The receiver's blocks, indexed by weak checksum for the sender's lookups
+    private static class Signature {
+        private final int blockSize;
+        private final int[] weak;
+        private final byte[][] strong;
+        private final int[] head;
+        private final int[] next;
+
+        Signature(int blockSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+            this.head = new int[Integer.highestOneBit(Math.max(1, weak.length) * 2) * 2];
+            this.next = new int[weak.length];
+            Arrays.fill(head, -1);
+            // Insert in reverse so each chain lists blocks in file order
+            for (int i = weak.length - 1; i >= 0; i--) {
+                int slot = slot(weak[i]);
+                next[i] = head[slot];
+                head[slot] = i;
+            }
+        }
+
+        private int slot(int checksum) {
+            int hash = checksum * 0x9E3779B1;
+            return (hash ^ (hash >>> 16)) & (head.length - 1);
+        }
+
+        // Returns the block whose checksums match the window, or -1
+        int find(int checksum, byte[] data, int offset) {
+            int block = head[slot(checksum)];
+            byte[] hash = null;
+            for (; block >= 0; block = next[block]) {
+                if (weak[block] != checksum) {
+                    continue;
+                }
+                if (hash == null) {
+                    hash = strongHash(data, offset, blockSize);
+                }
+                if (Arrays.equals(hash, strong[block])) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private DeltaTransfer() {
+    }
+
+    // Roughly the square root of the file size, which balances signature size against match granularity
+    static int blockSize(long basisSize) {
+        long size = (long) Math.sqrt((double) basisSize) & ~7L;
+        return (int) Math.max(AppConstants.DELTA_MIN_BLOCK_SIZE, Math.min(AppConstants.DELTA_MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Sends file as a delta against whatever the receiver holds under the same name and
+     * returns the number of literal bytes that had to cross the network.
+     */
+    public static long send(File file, Socket socket, TransferEngine.ProgressListener listener) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+        dataOut.writeUTF(AppConstants.HANDSHAKE_MESSAGE);
+        dataOut.writeByte(TransferHeader.KIND_DELTA);
+        dataOut.writeLong(file.length());
+        dataOut.writeUTF(file.getName());
+        dataOut.flush();
+
+        DataInputStream dataIn = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+        Signature signature;
+        int timeout = socket.getSoTimeout();
+        // The receiver reads its whole copy to build the signature
+        socket.setSoTimeout(AppConstants.RESUME_VERIFY_TIMEOUT);
+        try {
+            signature = readSignature(dataIn);
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+
+        long literalBytes;
+        try (InputStream in = new FileInputStream(file)) {
+            literalBytes = new Encoder(signature, dataOut, listener).encode(in, file.length());
+        }
+        dataOut.flush();
+
+        // The rebuilt file is checked against the digest before the receiver acknowledges it
+        socket.setSoTimeout(AppConstants.RESUME_VERIFY_TIMEOUT);
+        try {
+            if (dataIn.readLong() != file.length()) {
+                throw new IOException("Incomplete file transfer");
+            }
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+        return literalBytes;
+    }
+
+    private static Signature readSignature(DataInputStream in) throws IOException {
+        int blockSize = in.readInt();
+        int blockCount = in.readInt();
+        if (blockSize < AppConstants.DELTA_MIN_BLOCK_SIZE || blockSize > AppConstants.DELTA_MAX_BLOCK_SIZE
+                || blockCount < 0 || blockCount > AppConstants.DELTA_MAX_BLOCKS) {
+            throw new IOException("Invalid delta signature");
+        }
+        int[] weak = new int[blockCount];
+        byte[][] strong = new byte[blockCount][STRONG_LENGTH];
+        for (int i = 0; i < blockCount; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong[i]);
+        }
+        return new Signature(blockSize, weak, strong);
+    }
+
+    /**
+     * Walks the new file with a window of one block. On a match the window jumps a whole block
+     * and a COPY is queued; otherwise it rolls one byte and that byte becomes literal data.
+     */
+    private static class Encoder {
+        private final Signature signature;
+        private final DataOutputStream out;
+        private final TransferEngine.ProgressListener listener;
+        private final MessageDigest digest = Checkpoint.newDigest();
+        private int copyStart = -1;
+        private int copyCount;
+        private long processed;
+        private long literalBytes;
+
+        Encoder(Signature signature, DataOutputStream out, TransferEngine.ProgressListener listener) {
+            this.signature = signature;
+            this.out = out;
+            this.listener = listener;
+        }
+
+        long encode(InputStream in, long fileSize) throws IOException {
+            int blockSize = signature.blockSize;
+            byte[] buffer = new byte[Math.max(4 * blockSize, AppConstants.DELTA_LITERAL_SIZE + blockSize)];
+            int filled = 0;
+            int pos = 0;
+            int literalStart = 0;
+            boolean eof = false;
+            boolean rolling = false;
+            int a = 0;
+            int b = 0;
+            long total = 0;
+
+            while (true) {
+                if (filled - pos < blockSize && !eof) {
+                    // Keep only the unmatched window, then top the buffer up from the file
+                    literal(buffer, literalStart, pos - literalStart);
+                    System.arraycopy(buffer, pos, buffer, 0, filled - pos);
+                    filled -= pos;
+                    pos = 0;
+                    literalStart = 0;
+                    while (filled < buffer.length) {
+                        int n = in.read(buffer, filled, buffer.length - filled);
+                        if (n < 0) {
+                            eof = true;
+                            break;
+                        }
+                        digest.update(buffer, filled, n);
+                        filled += n;
+                        total += n;
+                    }
+                    rolling = false;
+                }
+                if (filled - pos < blockSize || signature.weak.length == 0) {
+                    // Too short to match a block, or nothing to match against
+                    if (eof || signature.weak.length == 0) {
+                        literal(buffer, literalStart, filled - literalStart);
+                        literalStart = filled;
+                        pos = filled;
+                        if (eof) {
+                            break;
+                        }
+                        continue;
+                    }
+                }
+
+                if (!rolling) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int x = buffer[pos + i] & 0xff;
+                        a += x;
+                        b += (blockSize - i) * x;
+                    }
+                    a &= 0xffff;
+                    b &= 0xffff;
+                    rolling = true;
+                }
+
+                int block = signature.find(a | (b << 16), buffer, pos);
+                if (block >= 0) {
+                    literal(buffer, literalStart, pos - literalStart);
+                    copy(block);
+                    pos += blockSize;
+                    literalStart = pos;
+                    rolling = false;
+                    continue;
+                }
+
+                // Roll the window one byte forward
+                if (pos + blockSize < filled) {
+                    int outByte = buffer[pos] & 0xff;
+                    int inByte = buffer[pos + blockSize] & 0xff;
+                    a = (a - outByte + inByte) & 0xffff;
+                    b = (b - blockSize * outByte + a) & 0xffff;
+                } else {
+                    rolling = false;
+                }
+                pos++;
+                if (pos - literalStart >= AppConstants.DELTA_LITERAL_SIZE) {
+                    literal(buffer, literalStart, pos - literalStart);
+                    literalStart = pos;
+                }
+            }
+
+            flushCopy();
+            if (total != fileSize) {
+                throw new IOException("File changed during transfer");
+            }
+            out.writeByte(OP_END);
+            out.write(digest.digest());
+            return literalBytes;
+        }
+
+        private void copy(int block) throws IOException {
+            if (copyStart >= 0 && block == copyStart + copyCount) {
+                copyCount++;
+            } else {
+                flushCopy();
+                copyStart = block;
+                copyCount = 1;
+            }
+            processed += signature.blockSize;
+            listener.onSkipped(processed);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyStart >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyStart);
+                out.writeInt(copyCount);
+                copyStart = -1;
+            }
+        }
+
+        private void literal(byte[] data, int offset, int length) throws IOException {
+            if (length > 0) {
+                flushCopy();
+            }
+            while (length > 0) {
+                int chunk = Math.min(length, AppConstants.DELTA_LITERAL_SIZE);
+                out.writeByte(OP_LITERAL);
+                out.writeInt(chunk);
+                out.write(data, offset, chunk);
+                literalBytes += chunk;
+                progress(chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void progress(long bytes) {
+            processed += bytes;
+            listener.onProgress(processed);
+        }
+    }
+
+    public static Request readRequest(DataInputStream in) throws IOException {
+        long fileSize = in.readLong();
+        String fileName = in.readUTF();
+        if (fileSize < 0) {
+            throw new IOException("Invalid transfer header");
+        }
+        return new Request(fileSize, fileName);
+    }
+
+    /**
+     * Sends the signature of the existing copy in saveDir, rebuilds the new version from the
+     * sender's instructions into a temporary file, and replaces the old copy once the digest
+     * matches. Returns the size of the rebuilt file.
+     */
+    public static long receive(Request request, Socket socket, InputStream headerIn, File saveDir,
+                               TransferEngine.ProgressListener listener) throws IOException {
+        // Only the last path element, so a crafted name cannot escape the save folder
+        File target = new File(saveDir, new File(request.fileName).getName());
+        File temp = new File(saveDir, target.getName() + TEMP_SUFFIX);
+        DataInputStream dataIn = new DataInputStream(headerIn);
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.DIRECT_BUFFER_SIZE));
+
+        long written;
+        try (FileChannel basis = target.isFile()
+                ? FileChannel.open(target.toPath(), StandardOpenOption.READ) : null;
+             FileChannel output = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long basisSize = basis != null ? basis.size() : 0;
+            int blockSize = blockSize(basisSize);
+            long blockCount = basisSize / blockSize;
+            if (blockCount > AppConstants.DELTA_MAX_BLOCKS) {
+                blockCount = 0; // Too large to index; everything is sent as literal data
+            }
+            writeSignature(basis, blockSize, (int) blockCount, dataOut);
+            dataOut.flush();
+
+            written = apply(dataIn, basis, blockSize, (int) blockCount, output, request.fileSize, listener);
+            output.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+
+        // Swap the new version in before telling the sender it arrived
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dataOut.writeLong(written);
+        dataOut.flush();
+        return written;
+    }
+
+    private static void writeSignature(FileChannel basis, int blockSize, int blockCount, DataOutputStream out)
+            throws IOException {
+        out.writeInt(blockSize);
+        out.writeInt(blockCount);
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < blockCount; i++) {
+            readFully(basis, (long) i * blockSize, block);
+            int a = 0;
+            int b = 0;
+            for (int j = 0; j < blockSize; j++) {
+                int x = block[j] & 0xff;
+                a += x;
+                b += (blockSize - j) * x;
+            }
+            out.writeInt((a & 0xffff) | ((b & 0xffff) << 16));
+            out.write(strongHash(block, 0, blockSize));
+        }
+    }
+
+    private static long apply(DataInputStream in, FileChannel basis, int blockSize, int blockCount,
+                              FileChannel output, long fileSize, TransferEngine.ProgressListener listener)
+            throws IOException {
+        MessageDigest digest = Checkpoint.newDigest();
+        byte[] buffer = new byte[Math.max(blockSize, AppConstants.DELTA_LITERAL_SIZE)];
+        long written = 0;
+        while (true) {
+            byte op = in.readByte();
+            if (op == OP_END) {
+                break;
+            }
+            if (op == OP_COPY) {
+                int first = in.readInt();
+                int count = in.readInt();
+                if (first < 0 || count <= 0 || first > blockCount - count
+                        || written + (long) count * blockSize > fileSize) {
+                    throw new IOException("Invalid delta instruction");
+                }
+                for (int i = 0; i < count; i++) {
+                    readFully(basis, (long) (first + i) * blockSize, ByteBuffer.wrap(buffer, 0, blockSize));
+                    written += write(output, written, buffer, blockSize, digest);
+                    listener.onSkipped(written);
+                }
+            } else if (op == OP_LITERAL) {
+                int length = in.readInt();
+                if (length <= 0 || length > buffer.length || written + length > fileSize) {
+                    throw new IOException("Invalid delta instruction");
+                }
+                in.readFully(buffer, 0, length);
+                written += write(output, written, buffer, length, digest);
+                listener.onProgress(written);
+            } else {
+                throw new IOException("Invalid delta instruction");
+            }
+        }
+
+        byte[] expected = new byte[Integrity.DIGEST_LENGTH];
+        in.readFully(expected);
+        if (written != fileSize) {
+            throw new IOException("Incomplete file transfer");
+        }
+        Integrity.checkDigest(expected, digest.digest());
+        return written;
+    }
+
+    private static int write(FileChannel output, long position, byte[] data, int length, MessageDigest digest)
+            throws IOException {
+        digest.update(data, 0, length);
+        ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        while (buffer.hasRemaining()) {
+            output.write(buffer, position + buffer.position());
+        }
+        return length;
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] data) throws IOException {
+        readFully(channel, position, ByteBuffer.wrap(data));
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new IOException("Old copy changed during transfer");
+            }
+        }
+    }
+
+    private static byte[] strongHash(byte[] data, int offset, int length) {
+        MessageDigest digest = Checkpoint.newDigest();
+        digest.update(data, offset, length);
+        return Arrays.copyOf(digest.digest(), STRONG_LENGTH);
+    }
+}
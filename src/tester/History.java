@@ -1,21 +1,21 @@
 package tester;
 
 import javax.swing.*;
+import javax.swing.event.TableModelEvent;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 import javax.swing.table.TableColumn;
 import javax.swing.table.JTableHeader;
 import java.awt.*;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.ArrayList;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class History extends BaseWindow {
     private JTable historyTable;
+    private HistoryTableModel tableModel;
+    private JScrollPane scrollPane;
+    private JLabel emptyLabel;
     private JButton refreshButton;
+    private JButton statisticsButton;
     private JButton exitButton;
     private JLabel dateTimeLabel;
     private JLabel userLabel;
@@ -30,6 +30,8 @@ public class History extends BaseWindow {
         historyTable = new JTable();
         refreshButton = new JButton("Refresh");
         refreshButton.setFont(AppConstants.DEFAULT_FONT);
+        statisticsButton = new JButton("Statistics");
+        statisticsButton.setFont(AppConstants.DEFAULT_FONT);
         exitButton = new JButton("Exit");
         exitButton.setFont(AppConstants.DEFAULT_FONT);
 
@@ -45,6 +47,8 @@ public class History extends BaseWindow {
         setupUI();
         setupListeners();
         refreshHistory();
+        // New transfers stream into the open table as they are logged
+        tableModel.follow();
         setVisible(true);
     }
 
@@ -62,14 +66,13 @@ public class History extends BaseWindow {
         infoPanel.add(userLabel);
         add(infoPanel, BorderLayout.NORTH);
 
-        // Create table model with column titles
-        String[] columnNames = {"Time", "Operation", "From / To", "File Name", "File Size"};
-        DefaultTableModel tableModel = new DefaultTableModel(columnNames, 0) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false; // This makes the table read-only
+        // Rows are paged in from the history store as the table scrolls
+        tableModel = new HistoryTableModel();
+        tableModel.addTableModelListener(e -> {
+            if (e.getType() == TableModelEvent.INSERT || e.getLastRow() == Integer.MAX_VALUE) {
+                showHistory(tableModel.getRowCount() > 0);
             }
-        };
+        });
         historyTable.setModel(tableModel);
 
         // Customize column widths
@@ -78,12 +81,18 @@ public class History extends BaseWindow {
         TableColumn fromToColumn = historyTable.getColumnModel().getColumn(2);
         TableColumn fileNameColumn = historyTable.getColumnModel().getColumn(3);
         TableColumn fileSizeColumn = historyTable.getColumnModel().getColumn(4);
+        TableColumn durationColumn = historyTable.getColumnModel().getColumn(5);
+        TableColumn averageSpeedColumn = historyTable.getColumnModel().getColumn(6);
+        TableColumn peakSpeedColumn = historyTable.getColumnModel().getColumn(7);
 
         timeColumn.setPreferredWidth(150);
         operationColumn.setPreferredWidth(80);
         fromToColumn.setPreferredWidth(80);
-        fileNameColumn.setPreferredWidth(500);
+        fileNameColumn.setPreferredWidth(320);
         fileSizeColumn.setPreferredWidth(80);
+        durationColumn.setPreferredWidth(70);
+        averageSpeedColumn.setPreferredWidth(100);
+        peakSpeedColumn.setPreferredWidth(100);
 
         // Center align data in each column
         DefaultTableCellRenderer centerRenderer = new DefaultTableCellRenderer();
@@ -109,58 +118,45 @@ public class History extends BaseWindow {
         historyTable.setIntercellSpacing(new Dimension(0, 1));
 
         // Table setup with scroll pane
-        JScrollPane scrollPane = new JScrollPane(historyTable);
+        scrollPane = new JScrollPane(historyTable);
         add(scrollPane, BorderLayout.CENTER);
 
+        // Shown instead of the table while there is no history
+        emptyLabel = new JLabel("No transfer history available", SwingConstants.CENTER);
+        emptyLabel.setFont(new Font("Arial", Font.BOLD, 18));
+        emptyLabel.setForeground(new Color(128, 128, 128)); // Gray color
+
         // Buttons setup
         JPanel buttonPanel = new JPanel();
         buttonPanel.setLayout(new FlowLayout(FlowLayout.CENTER, 20, 20));
         buttonPanel.add(refreshButton);
+        buttonPanel.add(statisticsButton);
         buttonPanel.add(exitButton);
         add(buttonPanel, BorderLayout.SOUTH);
     }
 
     private void setupListeners() {
         refreshButton.addActionListener(e -> refreshHistory());
+        statisticsButton.addActionListener(e -> new StatisticsDialog(this).setVisible(true));
         exitButton.addActionListener(e -> exit());
     }
 
+    // Only records added since the last refresh are read
     private void refreshHistory() {
-        DefaultTableModel tableModel = (DefaultTableModel) historyTable.getModel();
-        tableModel.setRowCount(0); // Clear existing data
-
-        ArrayList<String[]> data = read();
-        
-        if (data.isEmpty()) {
-            // Create a message label with custom styling
-            JLabel emptyLabel = new JLabel("No transfer history available", SwingConstants.CENTER);
-            emptyLabel.setFont(new Font("Arial", Font.BOLD, 18));
-            emptyLabel.setForeground(new Color(128, 128, 128)); // Gray color
-            
-            // Remove the table and show the message
-            remove(historyTable.getParent().getParent()); // Remove ScrollPane
-            add(emptyLabel, BorderLayout.CENTER);
-            
-            // Update the UI
-            revalidate();
-            repaint();
-        } else {
-            // If we previously showed the empty message, remove it and add back the table
-            if (historyTable.getParent() == null) {
-                remove(((BorderLayout)getLayout()).getLayoutComponent(BorderLayout.CENTER));
-                JScrollPane scrollPane = new JScrollPane(historyTable);
-                add(scrollPane, BorderLayout.CENTER);
-            }
-            
-            // Add the data to the table
-            for (String[] row : data) {
-                tableModel.addRow(row);
-            }
-            
-            // Update the UI
-            revalidate();
-            repaint();
+        tableModel.refresh();
+    }
+
+    // Swaps between the table and the empty message when rows appear or disappear
+    private void showHistory(boolean hasRows) {
+        if (hasRows == (scrollPane.getParent() != null)) {
+            return;
         }
+        remove(((BorderLayout) getLayout()).getLayoutComponent(BorderLayout.CENTER));
+        add(hasRows ? scrollPane : emptyLabel, BorderLayout.CENTER);
+
+        // Update the UI
+        revalidate();
+        repaint();
     }
 
     private void exit() {
@@ -169,27 +165,10 @@ public class History extends BaseWindow {
         SwingUtilities.invokeLater(() -> new ApplicationGUI().setVisible(true));
     }
 
-    @SuppressWarnings("finally")
-    public static ArrayList<String[]> read() {
-        String folderPath = "C:\\Users\\" + System.getProperty("user.name") + "\\OneDrive\\Documents\\LetsShare";
-        ArrayList<String[]> data = new ArrayList<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(folderPath + "\\logs.txt"))) {
-            String line;
-            String[] log;
-            while ((line = reader.readLine()) != null) {
-                log = line.split("  ");
-                data.add(log);
-            }
-        } catch (IOException e) {
-            System.err.println("Error reading log: " + e.getMessage());
-        } finally {
-            return data;
-        }
-    }
-
     @Override
     public void dispose() {
         timeUpdateTimer.stop();
+        tableModel.close();
         super.dispose();
     }
 
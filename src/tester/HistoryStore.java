@@ -0,0 +1,680 @@
+package tester;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Transfer history as an append-only binary log. Every transfer is one fixed-width record in
+ * history.dat, so record i sits at a known offset; peer and file name strings live in
+ * history.str and records point at them. Records are appended in time order, so a time range
+ * is a binary search, and peers and file names are looked up through indexes kept in memory.
+ * Rollups per peer, day and direction are kept up to date as records are indexed, so
+ * statistics never rescan the file. An old logs.txt is migrated the first time the store is
+ * opened, and a version 1 file is widened to the current record.
+ *
+ * Record: long time (epoch millis), long bytes, byte operation, three bytes padding, int hash
+ * of the file name, long peer offset and long name offset into the strings file, long
+ * duration in milliseconds and long peak speed in bytes per second (0 when unknown).
+ */
+public class HistoryStore {
+    public static final String SEND = "Send";
+    public static final String RECEIVE = "Receive";
+
+    private static final int MAGIC = 0x4C534853; // "LSHS"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_SIZE = 56;
+    private static final int V1_RECORD_SIZE = 40;
+    private static final int STRING_BLOCK_SIZE = 64 * 1024;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
+    // How statistics are grouped
+    public enum Dimension { PEER, DAY, DIRECTION }
+
+    private static HistoryStore shared;
+
+    // One transfer as shown in History
+    public static class Entry {
+        private final long time;
+        private final String operation;
+        private final String peer;
+        private final String name;
+        private final long bytes;
+        private final long durationMs;
+        private final long peakSpeed;
+
+        public Entry(long time, String operation, String peer, String name, long bytes, long durationMs,
+                     long peakSpeed) {
+            this.time = time;
+            this.operation = operation;
+            this.peer = peer;
+            this.name = name;
+            this.bytes = bytes;
+            this.durationMs = durationMs;
+            this.peakSpeed = peakSpeed;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getPeer() {
+            return peer;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        public long getPeakSpeed() {
+            return peakSpeed;
+        }
+
+        // Bytes per second over the whole transfer, 0 when the duration was not recorded
+        public long getAverageSpeed() {
+            return durationMs > 0 ? bytes * 1000 / durationMs : 0;
+        }
+
+        // The columns History displays
+        public String[] toRow() {
+            return new String[] {
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(TIME_FORMAT),
+                operation,
+                peer,
+                name,
+                getReadableFileSize(bytes),
+                durationMs > 0 ? String.format("%.1f s", durationMs / 1000.0) : "",
+                durationMs > 0 ? getReadableFileSize(getAverageSpeed()) + "/s" : "",
+                peakSpeed > 0 ? getReadableFileSize(peakSpeed) + "/s" : ""
+            };
+        }
+    }
+
+    // Totals for one peer, day or direction
+    public static class Rollup {
+        private final String key;
+        private long transfers;
+        private long bytes;
+        private long timedBytes;
+        private long durationMs;
+        private long peakSpeed;
+
+        Rollup(String key) {
+            this.key = key;
+        }
+
+        Rollup(Rollup other) {
+            this(other.key);
+            transfers = other.transfers;
+            bytes = other.bytes;
+            timedBytes = other.timedBytes;
+            durationMs = other.durationMs;
+            peakSpeed = other.peakSpeed;
+        }
+
+        void add(long bytes, long durationMs, long peakSpeed) {
+            transfers++;
+            this.bytes += bytes;
+            // Migrated entries have no duration and would drag the average down
+            if (durationMs > 0) {
+                timedBytes += bytes;
+                this.durationMs += durationMs;
+            }
+            this.peakSpeed = Math.max(this.peakSpeed, peakSpeed);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getTransfers() {
+            return transfers;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        // Bytes per second while transferring, over the entries that recorded a duration
+        public long getAverageSpeed() {
+            return durationMs > 0 ? timedBytes * 1000 / durationMs : 0;
+        }
+
+        public long getPeakSpeed() {
+            return peakSpeed;
+        }
+    }
+
+    // Growable list of record numbers
+    private static class Postings {
+        private int[] items = new int[4];
+        private int size;
+
+        void add(int item) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = item;
+        }
+    }
+
+    private final File dataFile;
+    private final FileChannel records;
+    private final FileChannel strings;
+    private int count;
+    private final Map<String, Long> peerOffsets = new HashMap<>();
+    private final Map<Long, String> peerNames = new HashMap<>();
+    private final Map<Long, Postings> byPeer = new HashMap<>();
+    private final Map<Integer, Postings> byName = new HashMap<>();
+    private final Map<Dimension, Map<String, Rollup>> rollups = new EnumMap<>(Dimension.class);
+    private ByteBuffer stringBlock = ByteBuffer.allocate(0);
+    private String day;
+    private long dayStart;
+    private long dayEnd;
+    private long stringBlockStart;
+
+    private HistoryStore(File folder) throws IOException {
+        dataFile = new File(folder, "history.dat");
+        File stringsFile = new File(folder, "history.str");
+        File logFile = new File(folder, "logs.txt");
+        if (!dataFile.exists() && logFile.exists()) {
+            migrate(logFile, dataFile, stringsFile);
+        }
+        if (dataFile.exists()) {
+            upgrade(dataFile);
+        }
+        for (Dimension dimension : Dimension.values()) {
+            rollups.put(dimension, new TreeMap<>());
+        }
+
+        records = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        strings = FileChannel.open(stringsFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (records.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+            records.write(header, 0);
+        }
+        readHeader();
+        refresh();
+    }
+
+    // Only used to build a fresh store during migration
+    private HistoryStore(File dataFile, File stringsFile) throws IOException {
+        this.dataFile = dataFile;
+        for (Dimension dimension : Dimension.values()) {
+            rollups.put(dimension, new TreeMap<>());
+        }
+        records = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        strings = FileChannel.open(stringsFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        records.write(ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip(), 0);
+    }
+
+    // Opened on first use in the LetsShare documents folder
+    public static synchronized HistoryStore shared() throws IOException {
+        if (shared == null) {
+            File folder = new File(folderPath());
+            if (!folder.exists()) {
+                folder.mkdirs();
+            }
+            shared = open(folder);
+        }
+        return shared;
+    }
+
+    // A store of its own in folder, migrating a logs.txt found there; used by the benchmarks
+    static HistoryStore open(File folder) throws IOException {
+        return new HistoryStore(folder);
+    }
+
+    /**
+     * The DATA_DIR_PROPERTY folder when set. Otherwise the LetsShare documents folder on
+     * Windows, where the app has always kept it, and a hidden folder in the home directory
+     * elsewhere, such as on a headless server.
+     */
+    static String folderPath() {
+        String configured = System.getProperty(AppConstants.DATA_DIR_PROPERTY);
+        if (configured != null && !configured.isBlank()) {
+            return configured;
+        }
+        File home = new File(System.getProperty("user.home"));
+        if (File.separatorChar == '\\') {
+            return new File(home, "OneDrive\\Documents\\LetsShare").getPath();
+        }
+        return new File(home, ".letsshare").getPath();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // The file to watch for new records
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Picks up records another writer appended since the last look, reading only those, and
+     * returns the new size. A record still being written is left for the next call.
+     */
+    public synchronized int refresh() throws IOException {
+        int available = (int) ((records.size() - HEADER_SIZE) / RECORD_SIZE);
+        if (available > count) {
+            indexRecords(count, available);
+            count = available;
+        }
+        return count;
+    }
+
+    public void append(Entry entry) throws IOException {
+        appendAll(List.of(entry));
+    }
+
+    /**
+     * Appends entries with one write to each file. Strings go first, so a record on disk never
+     * points past the end of the strings file. The data file is locked for the whole append and
+     * the other writers' records are picked up first, since the windows and a receive daemon
+     * may log to the same store.
+     */
+    public synchronized void appendAll(List<Entry> entries) throws IOException {
+        FileLock lock = records.lock();
+        try {
+            refresh();
+            write(entries);
+        } finally {
+            lock.release();
+        }
+    }
+
+    private void write(List<Entry> entries) throws IOException {
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream stringOut = new DataOutputStream(stringBytes);
+        long stringBase = strings.size();
+        Map<String, Long> newPeers = new HashMap<>();
+        ByteBuffer block = ByteBuffer.allocate(entries.size() * RECORD_SIZE);
+        for (Entry entry : entries) {
+            Long peer = peerOffsets.get(entry.peer);
+            if (peer == null) {
+                peer = newPeers.get(entry.peer);
+            }
+            if (peer == null) {
+                peer = stringBase + stringOut.size();
+                writeString(stringOut, entry.peer);
+                newPeers.put(entry.peer, peer);
+            }
+            long name = stringBase + stringOut.size();
+            writeString(stringOut, entry.name);
+
+            block.putLong(entry.time);
+            block.putLong(entry.bytes);
+            block.put(RECEIVE.equals(entry.operation) ? (byte) 1 : (byte) 0);
+            block.position(block.position() + 3);
+            block.putInt(entry.name.hashCode());
+            block.putLong(peer);
+            block.putLong(name);
+            block.putLong(entry.durationMs);
+            block.putLong(entry.peakSpeed);
+        }
+        writeFully(strings, ByteBuffer.wrap(stringBytes.toByteArray()), stringBase);
+        writeFully(records, block.flip(), offsetOf(count));
+
+        for (Map.Entry<String, Long> peer : newPeers.entrySet()) {
+            peerOffsets.put(peer.getKey(), peer.getValue());
+            peerNames.put(peer.getValue(), peer.getKey());
+        }
+        for (int i = 0; i < entries.size(); i++) {
+            index(count++, block, i * RECORD_SIZE);
+        }
+    }
+
+    // A copy of the totals for every key of the dimension, in key order
+    public synchronized List<Rollup> getRollups(Dimension dimension) {
+        List<Rollup> copies = new ArrayList<>();
+        for (Rollup rollup : rollups.get(dimension).values()) {
+            copies.add(new Rollup(rollup));
+        }
+        return copies;
+    }
+
+    // Makes everything appended so far durable
+    public synchronized void force() throws IOException {
+        strings.force(false);
+        records.force(false);
+    }
+
+    public synchronized Entry get(int index) throws IOException {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return read(readRecord(index));
+    }
+
+    // Entries from index first up to, not including, last
+    public synchronized List<Entry> range(int first, int last) throws IOException {
+        first = Math.max(0, first);
+        last = Math.min(count, last);
+        List<Entry> entries = new ArrayList<>(Math.max(0, last - first));
+        if (first >= last) {
+            return entries;
+        }
+        ByteBuffer block = ByteBuffer.allocate((last - first) * RECORD_SIZE);
+        readFully(records, block, offsetOf(first));
+        block.flip();
+        while (block.hasRemaining()) {
+            entries.add(read(block.slice(block.position(), RECORD_SIZE)));
+            block.position(block.position() + RECORD_SIZE);
+        }
+        return entries;
+    }
+
+    // Entries with from <= time < to, found by binary search over the time-ordered records
+    public synchronized List<Entry> findByTime(long from, long to) throws IOException {
+        return range(firstAtOrAfter(from), firstAtOrAfter(to));
+    }
+
+    public synchronized List<Entry> findByPeer(String peer) throws IOException {
+        Long offset = peerOffsets.get(peer);
+        return offset == null ? new ArrayList<>() : collect(byPeer.get(offset), null);
+    }
+
+    public synchronized List<Entry> findByName(String name) throws IOException {
+        return collect(byName.get(name.hashCode()), name);
+    }
+
+    private int firstAtOrAfter(long time) throws IOException {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (readRecord(middle).getLong(0) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Name postings are by hash, so candidates are checked against the real name
+    private List<Entry> collect(Postings postings, String name) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (postings == null) {
+            return entries;
+        }
+        for (int i = 0; i < postings.size; i++) {
+            Entry entry = read(readRecord(postings.items[i]));
+            if (name == null || name.equals(entry.name)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(records, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported history file");
+        }
+    }
+
+    // Widens version 1 records, which had no duration or peak speed, next to the file and swaps it in
+    private static void upgrade(File dataFile) throws IOException {
+        File temp = new File(dataFile.getPath() + ".tmp");
+        try (FileChannel source = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(source, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != 1) {
+                return;
+            }
+            long oldCount = (source.size() - HEADER_SIZE) / V1_RECORD_SIZE;
+            try (FileChannel target = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(target, ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip(), 0);
+                ByteBuffer in = ByteBuffer.allocate(V1_RECORD_SIZE * 4096);
+                ByteBuffer out = ByteBuffer.allocate(RECORD_SIZE * 4096);
+                for (long first = 0; first < oldCount; first += 4096) {
+                    int n = (int) Math.min(4096, oldCount - first);
+                    in.clear().limit(n * V1_RECORD_SIZE);
+                    readFully(source, in, HEADER_SIZE + first * V1_RECORD_SIZE);
+                    out.clear();
+                    for (int i = 0; i < n; i++) {
+                        out.put(in.array(), i * V1_RECORD_SIZE, V1_RECORD_SIZE);
+                        out.putLong(0).putLong(0);
+                    }
+                    writeFully(target, out.flip(), offsetOf((int) first));
+                }
+                target.force(false);
+            }
+        }
+        Files.move(temp.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // A record torn by a crash is left out of the count and overwritten by the next append
+    private void indexRecords(int from, int to) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        for (int first = from; first < to; first += 4096) {
+            int n = Math.min(4096, to - first);
+            block.clear().limit(n * RECORD_SIZE);
+            readFully(records, block, offsetOf(first));
+            for (int i = 0; i < n; i++) {
+                long peer = block.getLong(i * RECORD_SIZE + 24);
+                if (!peerNames.containsKey(peer)) {
+                    String name = readString(peer);
+                    peerNames.put(peer, name);
+                    peerOffsets.put(name, peer);
+                }
+                index(first + i, block, i * RECORD_SIZE);
+            }
+        }
+    }
+
+    // Adds the record at base in block to the lookups and the rollups
+    private void index(int record, ByteBuffer block, int base) {
+        long time = block.getLong(base);
+        long bytes = block.getLong(base + 8);
+        String direction = block.get(base + 16) == 1 ? RECEIVE : SEND;
+        long peer = block.getLong(base + 24);
+        long durationMs = block.getLong(base + 40);
+        long peakSpeed = block.getLong(base + 48);
+        byPeer.computeIfAbsent(peer, p -> new Postings()).add(record);
+        byName.computeIfAbsent(block.getInt(base + 20), h -> new Postings()).add(record);
+
+        String day = dayOf(time);
+        rollups.get(Dimension.PEER).computeIfAbsent(peerNames.get(peer), Rollup::new).add(bytes, durationMs, peakSpeed);
+        rollups.get(Dimension.DAY).computeIfAbsent(day, Rollup::new).add(bytes, durationMs, peakSpeed);
+        rollups.get(Dimension.DIRECTION).computeIfAbsent(direction, Rollup::new).add(bytes, durationMs, peakSpeed);
+    }
+
+    // Records come in time order, so the day of the previous one almost always matches
+    private String dayOf(long time) {
+        if (time < dayStart || time >= dayEnd) {
+            ZonedDateTime start = Instant.ofEpochMilli(time).atZone(ZoneId.systemDefault()).toLocalDate()
+                    .atStartOfDay(ZoneId.systemDefault());
+            dayStart = start.toInstant().toEpochMilli();
+            dayEnd = start.plusDays(1).toInstant().toEpochMilli();
+            day = start.format(DAY_FORMAT);
+        }
+        return day;
+    }
+
+    private ByteBuffer readRecord(int index) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        readFully(records, record, offsetOf(index));
+        return record.flip();
+    }
+
+    private Entry read(ByteBuffer record) throws IOException {
+        long peer = record.getLong(24);
+        String peerName = peerNames.get(peer);
+        if (peerName == null) {
+            peerName = readString(peer);
+        }
+        return new Entry(record.getLong(0), record.get(16) == 1 ? RECEIVE : SEND, peerName,
+                readString(record.getLong(32)), record.getLong(8), record.getLong(40), record.getLong(48));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Names of neighbouring records sit next to each other, so strings are read a block at a time
+    private String readString(long offset) throws IOException {
+        if (offset < stringBlockStart || offset + 4 > stringBlockStart + stringBlock.limit()
+                || offset + 4 + stringBlock.getInt((int) (offset - stringBlockStart))
+                > stringBlockStart + stringBlock.limit()) {
+            ByteBuffer length = ByteBuffer.allocate(4);
+            readFully(strings, length, offset);
+            int size = 4 + length.getInt(0);
+            stringBlock = ByteBuffer.allocate(Math.max(size, STRING_BLOCK_SIZE));
+            stringBlock.limit((int) Math.min(stringBlock.capacity(), Math.max(size, strings.size() - offset)));
+            readFully(strings, stringBlock, offset);
+            stringBlockStart = offset;
+        }
+        int position = (int) (offset - stringBlockStart);
+        int length = stringBlock.getInt(position);
+        return new String(stringBlock.array(), position + 4, length, StandardCharsets.UTF_8);
+    }
+
+    private static long offsetOf(int index) {
+        return HEADER_SIZE + (long) index * RECORD_SIZE;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("History file is truncated");
+            }
+        }
+    }
+
+    /**
+     * Converts the old double-space separated logs.txt. Both files are built next to the
+     * originals and moved into place, and logs.txt is kept as logs.txt.migrated.
+     */
+    private static void migrate(File logFile, File dataFile, File stringsFile) throws IOException {
+        File dataTemp = new File(dataFile.getPath() + ".tmp");
+        File stringsTemp = new File(stringsFile.getPath() + ".tmp");
+        Files.deleteIfExists(dataTemp.toPath());
+        Files.deleteIfExists(stringsTemp.toPath());
+        int migrated = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            HistoryStore target = new HistoryStore(dataTemp, stringsTemp);
+            try {
+                List<Entry> batch = new ArrayList<>();
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Entry entry = parseLine(line);
+                    if (entry != null) {
+                        batch.add(entry);
+                    }
+                    if (batch.size() == 4096) {
+                        target.appendAll(batch);
+                        migrated += batch.size();
+                        batch.clear();
+                    }
+                }
+                target.appendAll(batch);
+                migrated += batch.size();
+                target.force();
+            } finally {
+                target.close();
+            }
+        }
+        Files.move(stringsTemp.toPath(), stringsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(dataTemp.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(logFile.toPath(), new File(logFile.getPath() + ".migrated").toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        System.err.println("Migrated " + migrated + " history entries from " + logFile);
+    }
+
+    void close() throws IOException {
+        records.close();
+        strings.close();
+    }
+
+    // Parses "time  operation  peer  name  size  " as written by the old addLog, or null
+    static Entry parseLine(String line) {
+        String[] fields = line.split("  ");
+        if (fields.length < 5) {
+            return null;
+        }
+        try {
+            long time = LocalDateTime.parse(fields[0], TIME_FORMAT).atZone(ZoneId.systemDefault())
+                    .toInstant().toEpochMilli();
+            return new Entry(time, RECEIVE.equals(fields[1]) ? RECEIVE : SEND, fields[2], fields[3],
+                    parseSize(fields[4]), 0, 0);
+        } catch (RuntimeException e) {
+            System.err.println("Skipping unreadable history line: " + line);
+            return null;
+        }
+    }
+
+    // The old log only kept a rounded size such as "1.50 MB"
+    private static long parseSize(String size) {
+        String[] parts = size.trim().split(" ");
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int unit = Arrays.asList(units).indexOf(parts[1]);
+        if (unit < 0) {
+            throw new IllegalArgumentException("Unknown unit " + parts[1]);
+        }
+        return Math.round(Double.parseDouble(parts[0].replace(',', '.')) * Math.pow(1024, unit));
+    }
+
+    private static String getReadableFileSize(long bytes) {
+        if (bytes <= 0) return "0 B";
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int digitGroups = (int) (Math.log10(bytes) / Math.log10(1024));
+        return String.format("%.2f %s", bytes / Math.pow(1024, digitGroups), units[digitGroups]);
+    }
+}
@@ -0,0 +1,193 @@
+package tester;
+
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * History rows paged in from the HistoryStore as the table scrolls. Only the last
+ * HISTORY_CACHED_PAGES pages are kept; a row that is not loaded yet shows a placeholder while
+ * its page is read and formatted on a background thread, then the table repaints those rows.
+ */
+public class HistoryTableModel extends AbstractTableModel {
+    private static final String[] COLUMN_NAMES = {"Time", "Operation", "From / To", "File Name", "File Size",
+            "Duration", "Average Speed", "Peak Speed"};
+
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("letsshare-history").daemon().factory());
+    private final Map<Integer, String[][]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+            return size() > AppConstants.HISTORY_CACHED_PAGES;
+        }
+    };
+    private final Set<Integer> loading = new HashSet<>();
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private volatile WatchService watcher;
+    private int rowCount;
+    private boolean counted;
+
+    /**
+     * Appends whatever was added to the store since the last call, off the EDT. Only the new
+     * records are read, so the cost depends on how many arrived, not on the history size.
+     */
+    public void refresh() {
+        if (!refreshQueued.compareAndSet(false, true)) {
+            return;
+        }
+        loader.execute(() -> {
+            refreshQueued.set(false);
+            int size;
+            try {
+                size = HistoryStore.shared().refresh();
+            } catch (IOException e) {
+                System.err.println("Error reading log: " + e.getMessage());
+                return;
+            }
+            SwingUtilities.invokeLater(() -> append(size));
+        });
+    }
+
+    private void append(int size) {
+        if (size == rowCount && counted) {
+            return;
+        }
+        counted = true;
+        int previous = rowCount;
+        // The last page may have been cached while it was still short
+        int partial = previous / AppConstants.HISTORY_PAGE_SIZE;
+        pages.remove(partial);
+        loading.remove(partial);
+        rowCount = size;
+        if (size > previous) {
+            fireTableRowsInserted(previous, size - 1);
+        } else {
+            fireTableDataChanged();
+        }
+    }
+
+    /**
+     * Watches the history file and refreshes whenever it changes, so transfers show up in the
+     * open table as they finish.
+     */
+    public void follow() {
+        loader.execute(() -> {
+            try {
+                Path folder = HistoryStore.shared().getDataFile().getAbsoluteFile().getParentFile().toPath();
+                Path name = HistoryStore.shared().getDataFile().toPath().getFileName();
+                watcher = folder.getFileSystem().newWatchService();
+                folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                WatchService service = watcher;
+                Thread.ofPlatform().name("letsshare-history-watch").daemon().start(() -> watch(service, name));
+            } catch (IOException e) {
+                System.err.println("Cannot watch history: " + e.getMessage());
+            }
+        });
+    }
+
+    private void watch(WatchService service, Path name) {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context());
+                }
+                if (changed) {
+                    refresh();
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Window closed
+        }
+    }
+
+    public void close() {
+        // Not shutdownNow: interrupting a read would close the shared store's channels
+        loader.shutdown();
+        WatchService service = watcher;
+        if (service != null) {
+            try {
+                service.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int page = row / AppConstants.HISTORY_PAGE_SIZE;
+        String[][] rows = pages.get(page);
+        if (rows == null) {
+            requestPage(page);
+            return column == 0 ? "Loading..." : "";
+        }
+        return rows[row % AppConstants.HISTORY_PAGE_SIZE][column];
+    }
+
+    private void requestPage(int page) {
+        if (!loading.add(page)) {
+            return;
+        }
+        int first = page * AppConstants.HISTORY_PAGE_SIZE;
+        int last = Math.min(rowCount, first + AppConstants.HISTORY_PAGE_SIZE);
+        loader.execute(() -> {
+            String[][] rows;
+            try {
+                List<HistoryStore.Entry> entries = HistoryStore.shared().range(first, last);
+                rows = new String[entries.size()][];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = entries.get(i).toRow();
+                }
+            } catch (IOException e) {
+                System.err.println("Error reading log: " + e.getMessage());
+                rows = new String[last - first][];
+                for (int i = 0; i < rows.length; i++) {
+                    rows[i] = new String[] {"Unavailable", "", "", "", "", "", "", ""};
+                }
+            }
+            String[][] result = rows;
+            SwingUtilities.invokeLater(() -> {
+                loading.remove(page);
+                // A page read before more rows arrived is short; the repaint asks for it again
+                if (result.length == Math.min(rowCount, first + AppConstants.HISTORY_PAGE_SIZE) - first) {
+                    pages.put(page, result);
+                }
+                fireTableRowsUpdated(first, Math.min(rowCount, last) - 1);
+            });
+        });
+    }
+}
@@ -0,0 +1,122 @@
+package tester;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single background writer for the transfer history, shared by Send and Receive. Transfer
+ * threads only queue an entry; the writer thread takes everything queued so far and appends
+ * it as one group, so a burst of finished sessions costs one write per file. How often the
+ * history is forced to disk is set by HISTORY_SYNC_INTERVAL_MS.
+ */
+public final class HistoryWriter {
+    // Wakes the writer up on close; interrupting it would close the store's channels mid-write
+    private static final HistoryStore.Entry STOP = new HistoryStore.Entry(0, "", "", "", 0, 0, 0);
+    private static final HistoryWriter SHARED = new HistoryWriter(AppConstants.HISTORY_SYNC_INTERVAL_MS);
+
+    private final BlockingQueue<HistoryStore.Entry> queue = new LinkedBlockingQueue<>();
+    private final long syncIntervalMs;
+    private final Thread thread;
+    private volatile boolean closed;
+    private boolean dirty;
+    private long lastSync = System.nanoTime();
+
+    /**
+     * syncIntervalMs of 0 forces every group to disk before the next one is taken; otherwise
+     * the history is forced at most that often, and a crash can lose the entries of that window.
+     */
+    public HistoryWriter(long syncIntervalMs) {
+        this.syncIntervalMs = syncIntervalMs;
+        this.thread = Thread.ofPlatform().name("letsshare-history-writer").daemon().start(this::run);
+        // Whatever is still queued when the app exits is written before it goes
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public static HistoryWriter shared() {
+        return SHARED;
+    }
+
+    // Never blocks: the queue is unbounded and all I/O happens on the writer thread
+    public void submit(HistoryStore.Entry entry) {
+        if (closed) {
+            System.err.println("History writer is closed, dropping entry for " + entry.getName());
+            return;
+        }
+        queue.add(entry);
+    }
+
+    // A finished session as a history entry under operation, Send or Receive
+    public void log(String operation, TransferSession session) {
+        submit(new HistoryStore.Entry(System.currentTimeMillis(), operation, session.getPeer(), session.getName(),
+                session.getTotalBytes(), session.getDurationMs(), session.getPeakSpeed()));
+    }
+
+    // Stops taking entries and waits until everything queued is written and forced
+    public void close() {
+        closed = true;
+        queue.add(STOP);
+        try {
+            thread.join(AppConstants.HISTORY_CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<HistoryStore.Entry> batch = new ArrayList<>();
+        while (!closed || !queue.isEmpty()) {
+            try {
+                HistoryStore.Entry first = queue.poll(nextWait(), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                    batch.removeIf(entry -> entry == STOP);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            write(batch);
+            batch.clear();
+        }
+        sync(true);
+    }
+
+    private void write(List<HistoryStore.Entry> batch) {
+        if (!batch.isEmpty()) {
+            try {
+                HistoryStore.shared().appendAll(batch);
+                dirty = true;
+            } catch (IOException e) {
+                System.err.println("Could not write " + batch.size() + " history entries: " + e.getMessage());
+            }
+        }
+        sync(syncIntervalMs == 0);
+    }
+
+    private void sync(boolean now) {
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSync);
+        if (!dirty || (!now && elapsedMs < syncIntervalMs)) {
+            return;
+        }
+        try {
+            HistoryStore.shared().force();
+        } catch (IOException e) {
+            System.err.println("Could not sync history: " + e.getMessage());
+        }
+        dirty = false;
+        lastSync = System.nanoTime();
+    }
+
+    // Idle until the next entry, or until the pending sync is due
+    private long nextWait() {
+        if (!dirty) {
+            return Long.MAX_VALUE;
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSync);
+        return Math.max(1, syncIntervalMs - elapsedMs);
+    }
+}
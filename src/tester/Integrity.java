@@ -0,0 +1,193 @@
+package tester;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * End-to-end check of a range body. Every chunk is followed by its CRC32C, so a corrupted
+ * chunk fails as soon as it arrives, and a SHA-256 of the whole body follows as a trailer.
+ * Hashing runs on a thread of its own per range, overlapping the socket and disk I/O.
+ */
+public class Integrity implements AutoCloseable {
+    public static final int DIGEST_LENGTH = 32;
+
+    // Process-wide cost of hashing, to see what verification takes from a transfer
+    private static final LongAdder HASH_NANOS = new LongAdder();
+    private static final LongAdder HASHED_BYTES = new LongAdder();
+
+    private final ExecutorService hasher = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("letsshare-hash").daemon().factory());
+    private final MessageDigest digest = Checkpoint.newDigest();
+    private Future<?> last;
+
+    public static long getHashNanos() {
+        return HASH_NANOS.sum();
+    }
+
+    public static long getHashedBytes() {
+        return HASHED_BYTES.sum();
+    }
+
+    public static int crc(byte[] data, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // Queues a chunk for the digest and returns its CRC32C once both are computed
+    public Future<Integer> hash(byte[] data, int length) {
+        Future<Integer> result = hasher.submit(() -> {
+            long start = System.nanoTime();
+            int crc = crc(data, length);
+            digest.update(data, 0, length);
+            record(start, length);
+            return crc;
+        });
+        last = result;
+        return result;
+    }
+
+    // Queues a chunk for the digest only, for callers that computed its CRC elsewhere
+    public void update(byte[] data, int length) {
+        last = hasher.submit(() -> {
+            long start = System.nanoTime();
+            digest.update(data, 0, length);
+            record(start, length);
+        });
+    }
+
+    // Waits for everything queued and returns the digest of the whole body
+    public byte[] finish() throws IOException {
+        if (last != null) {
+            await(last);
+        }
+        return digest.digest();
+    }
+
+    public static void checkChunk(int expected, int actual, long position) throws IOException {
+        if (expected != actual) {
+            throw new IOException("Data at offset " + position + " failed verification");
+        }
+    }
+
+    public static void checkDigest(byte[] expected, byte[] actual) throws IOException {
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new IOException("File failed verification");
+        }
+    }
+
+    @Override
+    public void close() {
+        hasher.shutdownNow();
+    }
+
+    /**
+     * Sends count bytes of source from position in INTEGRITY_CHUNK_SIZE chunks, each followed
+     * by its CRC32C, then the digest. The chunk is hashed while it is written to the socket,
+     * so the file is only read once, and the next chunks are read ahead through a Pipeline.
+     */
+    public static long send(FileChannel source, long position, long count, DataOutputStream out,
+                            TransferEngine.ProgressListener listener) throws IOException {
+        int chunkSize = (int) Math.min(AppConstants.INTEGRITY_CHUNK_SIZE, Math.max(1, count));
+        long[] read = new long[1];
+        long[] sent = new long[1];
+        try (Integrity integrity = new Integrity()) {
+            Pipeline.run(count, chunkSize, false, Metrics.Io.DISK, buffer -> {
+                if (read[0] == count) {
+                    return -1;
+                }
+                buffer.limit((int) Math.min(buffer.capacity(), count - read[0]));
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer, position + read[0] + buffer.position()) < 0) {
+                        throw new EOFException("File was truncated during transfer");
+                    }
+                }
+                read[0] += buffer.position();
+                return buffer.position();
+            }, buffer -> {
+                int length = buffer.remaining();
+                Future<Integer> crc = integrity.hash(buffer.array(), length);
+                out.write(buffer.array(), 0, length);
+                out.writeInt(await(crc));
+                sent[0] += length;
+                listener.onProgress(sent[0]);
+            });
+            out.write(integrity.finish());
+            out.flush();
+        }
+        return sent[0];
+    }
+
+    /**
+     * Receives what send() wrote, writing each chunk at its position while it is hashed.
+     * Progress only counts chunks that passed, so checkpoints never hold unverified data.
+     * The socket is read ahead through a Pipeline; each buffer carries its chunk followed by
+     * the CRC32C the sender computed.
+     */
+    public static long receive(DataInputStream in, FileChannel target, long position, long count,
+                               TransferEngine.ProgressListener listener) throws IOException {
+        int chunkSize = (int) Math.min(AppConstants.INTEGRITY_CHUNK_SIZE, Math.max(1, count));
+        long[] read = new long[1];
+        long[] received = new long[1];
+        try (Integrity integrity = new Integrity()) {
+            Pipeline.run(count, chunkSize + Integer.BYTES, false, Metrics.Io.NETWORK, buffer -> {
+                if (read[0] == count) {
+                    return -1;
+                }
+                int length = (int) Math.min(chunkSize, count - read[0]);
+                in.readFully(buffer.array(), 0, length);
+                buffer.position(length);
+                buffer.putInt(in.readInt());
+                read[0] += length;
+                return buffer.position();
+            }, buffer -> {
+                int length = buffer.remaining() - Integer.BYTES;
+                int expected = buffer.getInt(length);
+                Future<Integer> crc = integrity.hash(buffer.array(), length);
+                buffer.limit(length);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer, position + received[0] + buffer.position());
+                }
+                checkChunk(expected, await(crc), position + received[0]);
+                received[0] += length;
+                listener.onProgress(received[0]);
+            });
+            byte[] expected = new byte[DIGEST_LENGTH];
+            in.readFully(expected);
+            checkDigest(expected, integrity.finish());
+        }
+        return received[0];
+    }
+
+    private static void record(long start, int length) {
+        HASH_NANOS.add(System.nanoTime() - start);
+        HASHED_BYTES.add(length);
+    }
+
+    static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while hashing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
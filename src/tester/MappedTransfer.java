@@ -0,0 +1,151 @@
+package tester;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Memory-mapped bodies for very large files. The sender maps the source in windows and writes
+ * them to the socket channel; the receiver maps windows of the preallocated target and reads
+ * the socket straight into them, so neither side copies through a heap or staging buffer.
+ * Each window is unmapped as soon as it is done instead of waiting for the GC. The wire format
+ * is the plain body, so either side may use it on its own.
+ */
+public class MappedTransfer {
+    // sun.misc.Unsafe.invokeCleaner, looked up reflectively; null if the runtime does not allow it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> type = Class.forName("sun.misc.Unsafe");
+            Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.err.println("Mapped windows will be released by the GC: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private MappedTransfer() {
+    }
+
+    // Mapping pays off for big bodies only; smaller ones take the regular path
+    public static boolean isWorthwhile(long count) {
+        return count >= AppConstants.MAPPED_MIN_BYTES;
+    }
+
+    /**
+     * An eighth of the body, kept between MAPPED_MIN_WINDOW and MAPPED_MAX_WINDOW: few map
+     * calls for huge files while bounding the address space and page tables held at once.
+     */
+    static long windowSize(long count) {
+        return Math.max(AppConstants.MAPPED_MIN_WINDOW, Math.min(AppConstants.MAPPED_MAX_WINDOW, count / 8));
+    }
+
+    public static long send(FileChannel source, long position, long count, Socket socket,
+                            TransferEngine.ProgressListener listener) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null || !channel.isBlocking()) {
+            throw new IOException("Memory-mapped sending needs a blocking socket channel");
+        }
+        long window = windowSize(count);
+        long sent = 0;
+        while (sent < count) {
+            long length = Math.min(window, count - sent);
+            // Touching a mapped page past the end of a truncated file would crash the VM
+            if (source.size() < position + sent + length) {
+                throw new IOException("File was truncated during transfer");
+            }
+            MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, position + sent, length);
+            try {
+                while (mapped.hasRemaining()) {
+                    // Write in slices so progress and rate limits keep flowing within a window
+                    mapped.limit(Math.min(mapped.capacity(), mapped.position() + AppConstants.MAPPED_WRITE_SIZE));
+                    sent += channel.write(mapped);
+                    mapped.limit(mapped.capacity());
+                    listener.onProgress(sent);
+                }
+            } finally {
+                unmap(mapped);
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Receives count bytes into target, which must already be at least position + count long.
+     * Returns the number of bytes received, short of count if the sender closed early.
+     */
+    public static long receive(TransferEngine.HeaderInputStream in, Socket socket, FileChannel target,
+                               long position, long count, TransferEngine.ProgressListener listener) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return TransferEngine.receiveFile(in, socket, target, position, count, listener);
+        }
+        long window = windowSize(count);
+        long received = 0;
+        int timeout = socket.getSoTimeout();
+        // Channel reads ignore SO_TIMEOUT, so wait on a selector as TransferEngine does
+        channel.configureBlocking(false);
+        try {
+            try (Selector selector = Selector.open()) {
+                channel.register(selector, SelectionKey.OP_READ);
+                boolean open = true;
+                while (open && received < count) {
+                    long length = Math.min(window, count - received);
+                    MappedByteBuffer mapped = target.map(FileChannel.MapMode.READ_WRITE, position + received, length);
+                    try {
+                        // Body bytes the header stream already pulled off the socket go first
+                        int drained = in.drainTo(mapped);
+                        if (drained > 0) {
+                            received += drained;
+                            listener.onProgress(received);
+                        }
+                        while (mapped.hasRemaining()) {
+                            int bytesRead = TransferEngine.read(channel, selector, timeout, mapped);
+                            if (bytesRead == -1) {
+                                open = false;
+                                break;
+                            }
+                            received += bytesRead;
+                            listener.onProgress(received);
+                        }
+                    } finally {
+                        unmap(mapped);
+                    }
+                }
+            }
+        } finally {
+            // Even after a failure, so the caller can still use the stream; the selector is closed by now
+            if (channel.isOpen()) {
+                channel.configureBlocking(true);
+            }
+        }
+        return received;
+    }
+
+    // No reference to the buffer may be used after this
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Could not unmap window: " + e);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package tester;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide transfer metrics. The transfer loops only add to striped counters, so recording
+ * costs about as much as the progress counter they already bump; everything else is worked
+ * out when someone reads. Readable over JMX as letsshare:type=Metrics and, once
+ * startEndpoint has been called, as text in the Prometheus format at /metrics on loopback.
+ */
+public class Metrics implements MetricsMBean {
+    // What the fill side of a Pipeline reads from; the drain side writes to the other one
+    public enum Io { DISK, NETWORK }
+
+    private static final LongAdder BYTES_SENT = new LongAdder();
+    private static final LongAdder BYTES_RECEIVED = new LongAdder();
+    private static final AtomicInteger ACTIVE_SENDS = new AtomicInteger();
+    private static final AtomicInteger ACTIVE_RECEIVES = new AtomicInteger();
+    private static final LongAdder COMPLETED_SENDS = new LongAdder();
+    private static final LongAdder COMPLETED_RECEIVES = new LongAdder();
+    private static final LongAdder FAILED_SENDS = new LongAdder();
+    private static final LongAdder FAILED_RECEIVES = new LongAdder();
+    private static final LongAdder RESUMES = new LongAdder();
+    private static final LongAdder DISK_NANOS = new LongAdder();
+    private static final LongAdder NETWORK_NANOS = new LongAdder();
+    // Average speed of each finished transfer, bytes per second
+    private static final double[] SPEED_BUCKETS = {1e6, 1e7, 5e7, 1e8, 2.5e8, 5e8, 1e9, 2.5e9};
+    private static final Histogram SEND_SPEED = new Histogram(SPEED_BUCKETS);
+    private static final Histogram RECEIVE_SPEED = new Histogram(SPEED_BUCKETS);
+    // Seconds from connect to connected, and from a resume offer to the sender's answer
+    private static final double[] HANDSHAKE_BUCKETS = {0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5};
+    private static final Histogram CONNECT = new Histogram(HANDSHAKE_BUCKETS);
+    private static final Histogram OFFER = new Histogram(HANDSHAKE_BUCKETS);
+
+    private static final Metrics SHARED = new Metrics();
+    private static HttpServer endpoint;
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(SHARED, new ObjectName("letsshare:type=Metrics"));
+        } catch (JMException e) {
+            System.err.println("Metrics are not available over JMX: " + e.getMessage());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // Bucket counts, sum and count, without any locking
+    private static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] counts;
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.counts = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts[bucket].increment();
+            sum.add(value);
+        }
+
+        long count() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        double average() {
+            long count = count();
+            return count > 0 ? sum.sum() / count : 0;
+        }
+
+        void write(StringBuilder text, String name, String labels) {
+            String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += counts[i].sum();
+                text.append(name).append("_bucket{").append(prefix).append("le=\"").append(bounds[i]).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += counts[bounds.length].sum();
+            text.append(name).append("_bucket{").append(prefix).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            text.append(name).append("_sum{").append(labels).append("} ").append(sum.sum()).append('\n');
+            text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    public static Metrics shared() {
+        return SHARED;
+    }
+
+    // Called from the transfer loops with the bytes added since the last call
+    static void transferred(boolean outgoing, long bytes) {
+        (outgoing ? BYTES_SENT : BYTES_RECEIVED).add(bytes);
+    }
+
+    static void sessionStarted(boolean outgoing) {
+        (outgoing ? ACTIVE_SENDS : ACTIVE_RECEIVES).incrementAndGet();
+    }
+
+    static void sessionFinished(boolean outgoing, boolean completed, long averageSpeed) {
+        (outgoing ? ACTIVE_SENDS : ACTIVE_RECEIVES).decrementAndGet();
+        if (completed) {
+            (outgoing ? COMPLETED_SENDS : COMPLETED_RECEIVES).increment();
+            (outgoing ? SEND_SPEED : RECEIVE_SPEED).observe(averageSpeed);
+        } else {
+            (outgoing ? FAILED_SENDS : FAILED_RECEIVES).increment();
+        }
+    }
+
+    // A session that failed before it started, such as one still waiting for a slot
+    static void sessionFailed(boolean outgoing) {
+        (outgoing ? FAILED_SENDS : FAILED_RECEIVES).increment();
+    }
+
+    static void connected(long nanos) {
+        CONNECT.observe(nanos / 1e9);
+    }
+
+    static void offerAnswered(long nanos) {
+        OFFER.observe(nanos / 1e9);
+    }
+
+    // A range that picked up from a checkpoint instead of starting over
+    static void resumed() {
+        RESUMES.increment();
+    }
+
+    static void io(Io io, long nanos) {
+        (io == Io.DISK ? DISK_NANOS : NETWORK_NANOS).add(nanos);
+    }
+
+    /**
+     * Serves getText() at http://127.0.0.1:port/metrics for a local scraper; only loopback is
+     * bound, so the numbers never leave the machine. Does nothing if already serving.
+     */
+    public static synchronized void startEndpoint(int port) throws IOException {
+        if (endpoint != null) {
+            return;
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = SHARED.getText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(
+                Thread.ofPlatform().name("letsshare-metrics").daemon().factory()));
+        server.start();
+        endpoint = server;
+    }
+
+    // Starts the endpoint on the port in the METRICS_PORT_PROPERTY system property, if one is set
+    public static void startConfiguredEndpoint() {
+        String port = System.getProperty(AppConstants.METRICS_PORT_PROPERTY);
+        if (port == null) {
+            return;
+        }
+        try {
+            startEndpoint(Integer.parseInt(port.trim()));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Could not serve metrics on port " + port + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long getBytesSent() {
+        return BYTES_SENT.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return BYTES_RECEIVED.sum();
+    }
+
+    @Override
+    public int getActiveSends() {
+        return ACTIVE_SENDS.get();
+    }
+
+    @Override
+    public int getActiveReceives() {
+        return ACTIVE_RECEIVES.get();
+    }
+
+    @Override
+    public long getCompletedSends() {
+        return COMPLETED_SENDS.sum();
+    }
+
+    @Override
+    public long getCompletedReceives() {
+        return COMPLETED_RECEIVES.sum();
+    }
+
+    @Override
+    public long getFailedSends() {
+        return FAILED_SENDS.sum();
+    }
+
+    @Override
+    public long getFailedReceives() {
+        return FAILED_RECEIVES.sum();
+    }
+
+    @Override
+    public long getResumes() {
+        return RESUMES.sum();
+    }
+
+    @Override
+    public long getAverageSendSpeed() {
+        return (long) SEND_SPEED.average();
+    }
+
+    @Override
+    public long getAverageReceiveSpeed() {
+        return (long) RECEIVE_SPEED.average();
+    }
+
+    @Override
+    public long getHandshakes() {
+        return CONNECT.count() + OFFER.count();
+    }
+
+    @Override
+    public double getAverageHandshakeMillis() {
+        long count = getHandshakes();
+        return count > 0 ? (CONNECT.sum.sum() + OFFER.sum.sum()) * 1000 / count : 0;
+    }
+
+    @Override
+    public double getDiskSeconds() {
+        return DISK_NANOS.sum() / 1e9;
+    }
+
+    @Override
+    public double getNetworkSeconds() {
+        return NETWORK_NANOS.sum() / 1e9;
+    }
+
+    @Override
+    public double getHashSeconds() {
+        return Integrity.getHashNanos() / 1e9;
+    }
+
+    @Override
+    public long getHashedBytes() {
+        return Integrity.getHashedBytes();
+    }
+
+    @Override
+    public String getText() {
+        StringBuilder text = new StringBuilder();
+        header(text, "letsshare_bytes_total", "counter", "File bytes sent or received, ranges resumed from a checkpoint included");
+        text.append("letsshare_bytes_total{direction=\"send\"} ").append(getBytesSent()).append('\n');
+        text.append("letsshare_bytes_total{direction=\"receive\"} ").append(getBytesReceived()).append('\n');
+
+        header(text, "letsshare_active_sessions", "gauge", "Transfers running now");
+        text.append("letsshare_active_sessions{direction=\"send\"} ").append(getActiveSends()).append('\n');
+        text.append("letsshare_active_sessions{direction=\"receive\"} ").append(getActiveReceives()).append('\n');
+
+        header(text, "letsshare_transfers_total", "counter", "Finished transfers by result");
+        text.append("letsshare_transfers_total{direction=\"send\",result=\"completed\"} ").append(getCompletedSends()).append('\n');
+        text.append("letsshare_transfers_total{direction=\"send\",result=\"failed\"} ").append(getFailedSends()).append('\n');
+        text.append("letsshare_transfers_total{direction=\"receive\",result=\"completed\"} ").append(getCompletedReceives()).append('\n');
+        text.append("letsshare_transfers_total{direction=\"receive\",result=\"failed\"} ").append(getFailedReceives()).append('\n');
+
+        header(text, "letsshare_resumes_total", "counter", "Ranges resumed from a checkpoint instead of sent again");
+        text.append("letsshare_resumes_total ").append(getResumes()).append('\n');
+
+        header(text, "letsshare_transfer_speed_bytes", "histogram", "Average speed of each completed transfer, bytes per second");
+        SEND_SPEED.write(text, "letsshare_transfer_speed_bytes", "direction=\"send\"");
+        RECEIVE_SPEED.write(text, "letsshare_transfer_speed_bytes", "direction=\"receive\"");
+
+        header(text, "letsshare_handshake_seconds", "histogram", "TCP connects, and resume offers until the sender answers");
+        CONNECT.write(text, "letsshare_handshake_seconds", "stage=\"connect\"");
+        OFFER.write(text, "letsshare_handshake_seconds", "stage=\"offer\"");
+
+        header(text, "letsshare_io_seconds_total", "counter", "Time pipelined bodies spent in disk and in network calls");
+        text.append("letsshare_io_seconds_total{stage=\"disk\"} ").append(getDiskSeconds()).append('\n');
+        text.append("letsshare_io_seconds_total{stage=\"network\"} ").append(getNetworkSeconds()).append('\n');
+
+        header(text, "letsshare_hash_seconds_total", "counter", "Time spent hashing verified bodies");
+        text.append("letsshare_hash_seconds_total ").append(getHashSeconds()).append('\n');
+        header(text, "letsshare_hashed_bytes_total", "counter", "Bytes hashed for verification");
+        text.append("letsshare_hashed_bytes_total ").append(getHashedBytes()).append('\n');
+        return text.toString();
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+}
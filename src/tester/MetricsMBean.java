@@ -0,0 +1,44 @@
+package tester;
+
+/**
+ * What Metrics shows over JMX, under letsshare:type=Metrics. Counters run from process start.
+ */
+public interface MetricsMBean {
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    int getActiveSends();
+
+    int getActiveReceives();
+
+    long getCompletedSends();
+
+    long getCompletedReceives();
+
+    long getFailedSends();
+
+    long getFailedReceives();
+
+    long getResumes();
+
+    // Average of the finished transfers' average speeds, in bytes per second
+    long getAverageSendSpeed();
+
+    long getAverageReceiveSpeed();
+
+    long getHandshakes();
+
+    double getAverageHandshakeMillis();
+
+    double getDiskSeconds();
+
+    double getNetworkSeconds();
+
+    double getHashSeconds();
+
+    long getHashedBytes();
+
+    // The same numbers in the text format the metrics endpoint serves
+    String getText();
+}
@@ -0,0 +1,731 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receiver built on NioTransferEngine. Every connection is a small state machine driven by an
+ * event loop, so a handful of threads serve any number of senders. Session limits, the shared
+ * bandwidth cap and resume checkpoints behave as in ReceiveServer.
+ */
+public class NioReceiveServer implements TransferServer {
+    private final File saveDir;
+    private final int maxSessions;
+    private final RateLimiter bandwidth;
+    private final List<TransferSession> sessions = new CopyOnWriteArrayList<>();
+    private final Map<Long, IncomingFile> incomingFiles = new ConcurrentHashMap<>();
+    private final Set<Inbound> connections = ConcurrentHashMap.newKeySet();
+    private final Queue<Runnable> waitingSessions = new ArrayDeque<>();
+    private int activeSessions;
+    private NioTransferEngine engine;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    public NioReceiveServer(File saveDir, int maxSessions, long maxBytesPerSecond) {
+        this.saveDir = saveDir;
+        this.maxSessions = maxSessions;
+        this.bandwidth = new RateLimiter(maxBytesPerSecond);
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        engine = NioTransferEngine.shared();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        running = true;
+        engine.nextLoop().register(serverChannel, SelectionKey.OP_ACCEPT, new Acceptor(), null);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        NioTransferEngine.closeQuietly(serverChannel);
+        for (Inbound connection : connections) {
+            connection.run(() -> {
+                throw new IOException("Receiver stopped");
+            });
+        }
+    }
+
+    @Override
+    public RateLimiter getBandwidth() {
+        return bandwidth;
+    }
+
+    @Override
+    public List<TransferSession> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    @Override
+    public List<TransferSession> clearFinishedSessions() {
+        List<TransferSession> finished = new ArrayList<>();
+        sessions.removeIf(session -> !session.isActive() && finished.add(session));
+        return finished;
+    }
+
+    // Runs admitted now if a session slot is free, otherwise once one is released
+    private void admit(Runnable admitted) {
+        synchronized (this) {
+            if (activeSessions >= maxSessions) {
+                waitingSessions.add(admitted);
+                return;
+            }
+            activeSessions++;
+        }
+        admitted.run();
+    }
+
+    private void releaseSlot() {
+        Runnable next;
+        synchronized (this) {
+            next = waitingSessions.poll();
+            if (next == null) {
+                activeSessions--;
+            }
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    private void finishSession(TransferSession session, Exception error) {
+        if (error != null) {
+            session.finish(TransferSession.State.FAILED, error.getMessage() != null ? error.getMessage() : error.toString());
+            if (running) {
+                error.printStackTrace();
+            }
+            return;
+        }
+        session.finish(TransferSession.State.COMPLETED, "Received");
+
+        // Log the transfer
+        HistoryWriter.shared().log(HistoryStore.RECEIVE, session);
+    }
+
+    private class Acceptor implements NioTransferEngine.Handler {
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                TransferEngine.configureReceiveBuffer(channel.socket());
+                Inbound connection = new Inbound(engine.nextLoop(), channel);
+                connections.add(connection);
+                connection.loop.register(channel, SelectionKey.OP_READ, connection, null);
+            }
+        }
+
+        @Override
+        public void fail(Exception e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A file arriving over one or more range connections, shared by all of them. Opened on the
+     * blocking pool once the session is admitted; closed when the last range is in or any fails.
+     */
+    private class IncomingFile {
+        private final TransferHeader header;
+        private final File saveFile;
+        private final TransferSession session;
+        private final List<Inbound> ranges = new ArrayList<>();
+        private final AtomicLong received = new AtomicLong();
+        private RandomAccessFile raf;
+        private FileChannel fileChannel;
+        private Checkpoint checkpoint;
+        private boolean admitted;
+        private boolean ready;
+        private boolean finished;
+        private Exception error;
+        private int rangesDone;
+
+        IncomingFile(TransferHeader header, String peer) {
+            this.header = header;
+            // Only the last path element, so a crafted name cannot escape the save folder
+            String fileName = new File(header.getFileName()).getName();
+            this.saveFile = new File(saveDir, fileName);
+            this.session = new TransferSession(peer, fileName, header.getFileSize());
+            sessions.add(session);
+            admit(() -> engine.blockingTasks().execute(this::open));
+        }
+
+        // Holds the lock while opening, so a failing range cannot close the file halfway through
+        private synchronized void open() {
+            if (finished) {
+                releaseSlot();
+                return;
+            }
+            admitted = true;
+            try {
+                checkpoint = Checkpoint.open(saveFile, header.getFileSize());
+                raf = new RandomAccessFile(saveFile, "rw");
+                // Preallocate so every stream can write at its own offset, keeping a resumable partial file
+                if (!checkpoint.isResumable()) {
+                    raf.setLength(0);
+                }
+                raf.setLength(header.getFileSize());
+                fileChannel = raf.getChannel();
+                session.start();
+                ready = true;
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            for (Inbound range : ranges) {
+                range.run(range::offerResume);
+            }
+        }
+
+        // Attaches a range connection, which starts right away if the file is already open
+        synchronized boolean attach(Inbound range, TransferHeader rangeHeader) throws IOException {
+            if (rangeHeader.getFileSize() != header.getFileSize() || rangeHeader.getStreams() != header.getStreams()
+                    || ranges.size() >= header.getStreams()) {
+                throw new IOException("Invalid transfer header");
+            }
+            if (finished) {
+                throw error != null ? new IOException(error.getMessage(), error) : new IOException("Transfer already finished");
+            }
+            ranges.add(range);
+            return ready;
+        }
+
+        void progress(long bytes) {
+            session.update(received.addAndGet(bytes));
+        }
+
+        // Under the lock and only while the file is open, so a late save cannot outlive the completion
+        synchronized void saveCheckpoint() {
+            if (finished) {
+                return;
+            }
+            try {
+                checkpoint.save(fileChannel);
+            } catch (IOException e) {
+                System.err.println("Could not save checkpoint: " + e.getMessage());
+            }
+        }
+
+        void rangeDone() {
+            synchronized (this) {
+                if (finished || ++rangesDone < header.getStreams()) {
+                    return;
+                }
+                finished = true;
+            }
+            engine.blockingTasks().execute(() -> {
+                incomingFiles.remove(header.getTransferId());
+                boolean complete = received.get() == header.getFileSize();
+                // Waits for a save that is still running, later ones see finished and do nothing
+                synchronized (this) {
+                    NioTransferEngine.closeQuietly(raf);
+                    if (complete) {
+                        checkpoint.delete();
+                    }
+                }
+                finishSession(session, complete ? null : new IOException("Incomplete file transfer"));
+                releaseSlot();
+            });
+        }
+
+        void fail(Exception e) {
+            List<Inbound> others;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                error = e;
+                others = new ArrayList<>(ranges);
+            }
+            incomingFiles.remove(header.getTransferId());
+            for (Inbound range : others) {
+                range.run(range::close);
+            }
+            engine.blockingTasks().execute(() -> {
+                boolean releasing;
+                synchronized (this) {
+                    releasing = admitted;
+                    if (ready) {
+                        try {
+                            checkpoint.save(fileChannel);
+                        } catch (IOException saveError) {
+                            System.err.println("Could not save checkpoint: " + saveError.getMessage());
+                        }
+                    }
+                    NioTransferEngine.closeQuietly(raf);
+                }
+                finishSession(session, e);
+                // A transfer that never got its slot gives it back when open() runs
+                if (releasing) {
+                    releaseSlot();
+                }
+            });
+        }
+    }
+
+    private interface ExchangeBody {
+        long run(TransferEngine.ProgressListener listener) throws IOException;
+    }
+
+    private interface Written {
+        void written(long bytes, long end) throws IOException;
+    }
+
+    private enum State { KIND, FILE_HEADER, OFFERING, AWAIT_START, BODY, BATCH_MANIFEST, ENTRY, ENTRY_BODY, ACK, HANDED_OFF, DONE }
+
+    // One accepted connection, carrying either a file range or a whole batch
+    private class Inbound extends NioTransferEngine.Connection {
+        private final String peer;
+        private State state = State.KIND;
+        private TransferHeader header;
+        private IncomingFile file;
+        private long position;
+        private long remaining;
+        // One body write runs on the blocking pool at a time, the next one collects in pending;
+        // waiting means reading stopped until the write is done
+        private boolean writing;
+        private boolean waiting;
+        private ByteBuffer pending;
+        private long pendingAt;
+
+        // Batch state
+        private BatchTransfer.Manifest manifest;
+        private TransferSession batchSession;
+        private boolean batchAdmitted;
+        private Path base;
+        private final List<Path> directories = new ArrayList<>();
+        private final List<Integer> directoryPermissions = new ArrayList<>();
+        private int entriesReceived;
+        private long batchBytes;
+        private FileChannel entryChannel;
+        private Path entryTarget;
+        private int entryPermissions;
+        private long entrySize;
+
+        Inbound(NioTransferEngine.EventLoop loop, SocketChannel channel) throws IOException {
+            super(loop, channel);
+            this.peer = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        @Override
+        void onData(ByteBuffer data) throws IOException {
+            while (!paused && !closed && data.hasRemaining()) {
+                switch (state) {
+                    case KIND -> {
+                        Byte kind = NioTransferEngine.tryParse(data, TransferHeader::readKind);
+                        if (kind == null) {
+                            return;
+                        }
+                        if (kind == TransferHeader.KIND_FILE) {
+                            state = State.FILE_HEADER;
+                        } else if (kind == TransferHeader.KIND_BATCH) {
+                            state = State.BATCH_MANIFEST;
+                        } else if (kind == TransferHeader.KIND_DELTA || kind == TransferHeader.KIND_DEDUP) {
+                            handOff(data, kind);
+                            return;
+                        } else {
+                            throw new IOException("Unknown transfer kind");
+                        }
+                    }
+                    case FILE_HEADER -> {
+                        header = NioTransferEngine.tryParse(data, TransferHeader::readFile);
+                        if (header == null) {
+                            return;
+                        }
+                        startRange();
+                    }
+                    case AWAIT_START -> {
+                        Long start = NioTransferEngine.tryParse(data, in -> in.readLong());
+                        if (start == null) {
+                            return;
+                        }
+                        beginBody(start);
+                    }
+                    case BODY -> writeBody(data, file.fileChannel, this::rangeWritten);
+                    case BATCH_MANIFEST -> {
+                        manifest = NioTransferEngine.tryParse(data, BatchTransfer::readManifest);
+                        if (manifest == null) {
+                            return;
+                        }
+                        startBatch();
+                    }
+                    case ENTRY -> {
+                        BatchTransfer.Record record = NioTransferEngine.tryParse(data, BatchTransfer::readRecord);
+                        if (record == null) {
+                            return;
+                        }
+                        startEntry(record);
+                    }
+                    case ENTRY_BODY -> writeBody(data, entryChannel, this::entryWritten);
+                    default -> throw new IOException("Unexpected data from sender");
+                }
+            }
+        }
+
+        // Delta and dedup are back-and-forth exchanges, so they run as blocking sessions on a virtual thread
+        private void handOff(ByteBuffer data, byte kind) {
+            byte[] buffered = new byte[data.remaining()];
+            data.get(buffered);
+            state = State.HANDED_OFF;
+            pause();
+            loop.deregister(key, () -> {
+                channel.configureBlocking(true);
+                Thread.ofVirtual().name("letsshare-exchange").start(() -> receiveBlocking(buffered, kind));
+            }, this);
+        }
+
+        private void receiveBlocking(byte[] buffered, byte kind) {
+            TransferSession session = null;
+            boolean admitted = false;
+            try {
+                Socket socket = channel.socket();
+                socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+                InputStream in = new BufferedInputStream(new SequenceInputStream(
+                        new ByteArrayInputStream(buffered), socket.getInputStream()), AppConstants.BUFFER_SIZE);
+                DataInputStream dataIn = new DataInputStream(in);
+                String name;
+                long size;
+                ExchangeBody body;
+                if (kind == TransferHeader.KIND_DELTA) {
+                    DeltaTransfer.Request request = DeltaTransfer.readRequest(dataIn);
+                    name = request.getFileName();
+                    size = request.getFileSize();
+                    body = listener -> DeltaTransfer.receive(request, socket, in, saveDir, listener);
+                } else {
+                    DedupTransfer.Request request = DedupTransfer.readRequest(dataIn);
+                    name = request.getFileName();
+                    size = request.getFileSize();
+                    body = listener -> DedupTransfer.receive(request, socket, in, saveDir, listener);
+                }
+                session = new TransferSession(peer, new File(name).getName(), size);
+                sessions.add(session);
+
+                CompletableFuture<Void> slot = new CompletableFuture<>();
+                admit(() -> slot.complete(null));
+                slot.join();
+                admitted = true;
+                session.start();
+                body.run(TransferEngine.throttled(session, bandwidth));
+                finishSession(session, null);
+            } catch (Exception e) {
+                if (session != null) {
+                    finishSession(session, e);
+                } else if (running) {
+                    e.printStackTrace();
+                }
+            } finally {
+                if (admitted) {
+                    releaseSlot();
+                }
+                run(this::close);
+            }
+        }
+
+        private void startRange() throws IOException {
+            pause();
+            file = incomingFiles.computeIfAbsent(header.getTransferId(), id -> new IncomingFile(header, peer));
+            if (file.attach(this, header)) {
+                offerResume();
+            } else {
+                state = State.OFFERING;
+            }
+        }
+
+        // Hashes what is already held of the range on the blocking pool, then sends the offer
+        private void offerResume() {
+            state = State.OFFERING;
+            engine.blockingTasks().execute(() -> {
+                try {
+                    long held = file.checkpoint.held(header.getOffset(), header.getLength());
+                    byte[][] hashes = Checkpoint.hashBlocks(file.fileChannel, header.getOffset(), held);
+                    // Bodies are written straight from the read buffer, so compression and verification are declined
+                    Checkpoint.Offer offer = new Checkpoint.Offer(Compression.CODEC_NONE, false, held, hashes);
+                    byte[] bytes = NioTransferEngine.encode(out -> Checkpoint.writeOffer(out, offer));
+                    run(() -> {
+                        state = State.AWAIT_START;
+                        // The sender hashes the same prefix before it answers
+                        timeout = AppConstants.RESUME_VERIFY_TIMEOUT;
+                        send(bytes);
+                    });
+                } catch (IOException e) {
+                    run(() -> {
+                        throw e;
+                    });
+                }
+            });
+        }
+
+        @Override
+        void onSent() throws IOException {
+            if (state == State.AWAIT_START) {
+                resume(SelectionKey.OP_READ);
+            } else if (state == State.ACK) {
+                finishBatch();
+            }
+        }
+
+        private void beginBody(long start) throws IOException {
+            long held = file.checkpoint.held(header.getOffset(), header.getLength());
+            if (start < 0 || start > held) {
+                throw new IOException("Invalid resume offset");
+            }
+            file.checkpoint.update(header.getOffset(), header.getLength(), start);
+            if (start > 0) {
+                Metrics.resumed();
+                file.progress(start);
+            }
+            timeout = AppConstants.SOCKET_TIMEOUT;
+            position = header.getOffset() + start;
+            remaining = header.getLength() - start;
+            state = State.BODY;
+            if (remaining == 0) {
+                finishRange();
+            }
+        }
+
+        private void finishRange() {
+            state = State.DONE;
+            close();
+            file.rangeDone();
+        }
+
+        /**
+         * Copies the body bytes at hand out of the read buffer and writes them on the blocking pool,
+         * so a slow disk never holds up the other connections on this loop. While a write runs, the
+         * next bytes collect in a second buffer that is written as soon as it is done; reading only
+         * stops when that one is full too. written runs on the loop once the bytes are in the file.
+         */
+        private void writeBody(ByteBuffer data, FileChannel target, Written written) {
+            if (writing && (remaining == 0 || (pending != null && !pending.hasRemaining()))) {
+                waiting = true;
+                pause();
+                return;
+            }
+            ByteBuffer buffer;
+            if (writing) {
+                if (pending == null) {
+                    pending = BufferPool.SHARED.acquire();
+                    pendingAt = position;
+                }
+                buffer = pending;
+            } else {
+                buffer = BufferPool.SHARED.acquire();
+            }
+            long at = position;
+            int n = (int) Math.min(Math.min(data.remaining(), remaining), buffer.remaining());
+            buffer.put(data.slice(data.position(), n));
+            data.position(data.position() + n);
+            position += n;
+            remaining -= n;
+            if (buffer != pending) {
+                write(buffer.flip(), target, at, written);
+            }
+        }
+
+        private void write(ByteBuffer buffer, FileChannel target, long at, Written written) {
+            writing = true;
+            engine.blockingTasks().execute(() -> {
+                try {
+                    long start = System.nanoTime();
+                    int n = buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        target.write(buffer, at + buffer.position());
+                    }
+                    Metrics.io(Metrics.Io.DISK, System.nanoTime() - start);
+                    run(() -> {
+                        writing = false;
+                        boolean resume = waiting;
+                        if (waiting) {
+                            waiting = false;
+                            paused = false;
+                        }
+                        written.written(n, at + n);
+                        if (pending != null && !closed) {
+                            ByteBuffer next = pending;
+                            pending = null;
+                            write(next.flip(), target, pendingAt, written);
+                        }
+                        // The callback may have closed the connection or held it off for the bandwidth limit
+                        if (resume && !paused && !closed) {
+                            resume(SelectionKey.OP_READ);
+                        }
+                    });
+                } catch (IOException e) {
+                    run(() -> {
+                        throw e;
+                    });
+                } finally {
+                    BufferPool.SHARED.release(buffer);
+                }
+            });
+        }
+
+        private void rangeWritten(long n, long end) {
+            long done = end - header.getOffset();
+            file.progress(n);
+            file.checkpoint.update(header.getOffset(), header.getLength(), done);
+            if (file.checkpoint.claimSave()) {
+                engine.blockingTasks().execute(file::saveCheckpoint);
+            }
+            throttle(n);
+            if (done == header.getLength()) {
+                finishRange();
+            }
+        }
+
+        private void entryWritten(long n, long end) throws IOException {
+            batchBytes += n;
+            batchSession.update(batchBytes);
+            throttle(n);
+            if (end == entrySize) {
+                finishEntry();
+            }
+        }
+
+        // Holds off reading for as long as the shared bandwidth limit asks
+        private void throttle(long bytes) {
+            throttle(bandwidth, bytes, SelectionKey.OP_READ);
+        }
+
+        private void startBatch() {
+            pause();
+            base = saveDir.toPath().toAbsolutePath().normalize();
+            batchSession = new TransferSession(peer, manifest.getLabel(), manifest.getTotalBytes());
+            sessions.add(batchSession);
+            admit(() -> loop.execute(() -> {
+                if (closed) {
+                    releaseSlot();
+                    return;
+                }
+                batchAdmitted = true;
+                batchSession.start();
+                state = State.ENTRY;
+                try {
+                    resume(SelectionKey.OP_READ);
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }));
+        }
+
+        private void startEntry(BatchTransfer.Record record) throws IOException {
+            if (record.type == BatchTransfer.ENTRY_END) {
+                // Directories last, in case one of them is read-only
+                for (int i = directories.size() - 1; i >= 0; i--) {
+                    BatchTransfer.applyPermissions(directories.get(i), directoryPermissions.get(i));
+                }
+                state = State.ACK;
+                pause();
+                send(NioTransferEngine.encode(out -> BatchTransfer.writeAck(out, entriesReceived, batchBytes)));
+                return;
+            }
+            if (++entriesReceived > manifest.getEntryCount()) {
+                throw new IOException("Invalid batch entry");
+            }
+            Path target = BatchTransfer.resolve(base, record.path);
+            if (record.type == BatchTransfer.ENTRY_DIRECTORY) {
+                Files.createDirectories(target);
+                BatchTransfer.makeWritable(target);
+                directories.add(target);
+                directoryPermissions.add(record.permissions);
+                return;
+            }
+
+            Files.createDirectories(target.getParent());
+            BatchTransfer.makeWritable(target);
+            entryChannel = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            entryTarget = target;
+            entryPermissions = record.permissions;
+            position = 0;
+            remaining = record.size;
+            entrySize = record.size;
+            state = State.ENTRY_BODY;
+            if (remaining == 0) {
+                finishEntry();
+            }
+        }
+
+        private void finishEntry() throws IOException {
+            entryChannel.close();
+            entryChannel = null;
+            BatchTransfer.applyPermissions(entryTarget, entryPermissions);
+            state = State.ENTRY;
+        }
+
+        private void finishBatch() {
+            state = State.DONE;
+            close();
+            finishSession(batchSession, null);
+            releaseSlot();
+        }
+
+        @Override
+        void onEndOfStream() throws IOException {
+            if (writing) {
+                // The end shows up again once reading resumes after the write
+                waiting = true;
+                pause();
+                return;
+            }
+            if (state != State.DONE) {
+                throw new EOFException("Incomplete file transfer");
+            }
+        }
+
+        @Override
+        void onFailure(Exception e) {
+            if (file != null) {
+                file.fail(e);
+            } else if (batchSession != null) {
+                finishSession(batchSession, e);
+                if (batchAdmitted) {
+                    releaseSlot();
+                }
+            } else if (running) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        void onClose() {
+            connections.remove(this);
+            NioTransferEngine.closeQuietly(entryChannel);
+            BufferPool.SHARED.release(pending);
+        }
+    }
+}
@@ -0,0 +1,901 @@
+package tester;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking transfer engine. A small fixed set of event loops multiplexes every connection
+ * with a Selector instead of parking a thread per socket; bodies still move through pooled
+ * direct buffers and transferTo. Work that can block for long, like hashing a resume prefix
+ * or forcing a checkpoint to disk, runs on a separate pool so the loops keep serving others.
+ * Speaks the same protocol as the blocking classes, so either side may use either engine.
+ */
+public class NioTransferEngine {
+    private static final long TIMEOUT_SWEEP_MS = 1000;
+    private static final int MAX_WRITES_PER_EVENT = 64;
+    private static NioTransferEngine shared;
+
+    private final EventLoop[] loops;
+    private final ExecutorService blockingTasks;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioTransferEngine(int threads) throws IOException {
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop();
+            Thread.ofPlatform().name("letsshare-nio-" + i).daemon().start(loops[i]);
+        }
+        blockingTasks = Executors.newFixedThreadPool(threads,
+                Thread.ofPlatform().name("letsshare-nio-io-", 0).daemon().factory());
+    }
+
+    public static synchronized NioTransferEngine shared() throws IOException {
+        if (shared == null) {
+            shared = new NioTransferEngine(AppConstants.NIO_THREADS);
+        }
+        return shared;
+    }
+
+    EventLoop nextLoop() {
+        return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    }
+
+    ExecutorService blockingTasks() {
+        return blockingTasks;
+    }
+
+    // Waits for a transfer started on the engine and rethrows its original failure
+    public static long await(CompletableFuture<Long> transfer) throws Exception {
+        try {
+            return transfer.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Sends a file over the connected primary channel, opening extra connections to the same
+     * receiver when the file is large enough to split. The channel is closed when done.
+     * Connections hold off writing while the limit asks, without blocking the loop.
+     */
+    public CompletableFuture<Long> sendFile(SocketChannel primary, File file, int requestedStreams,
+                                            RateLimiter limit, TransferEngine.ProgressListener listener) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        try {
+            long fileSize = file.length();
+            int streams = TransferHeader.streamCount(fileSize, requestedStreams);
+            TransferHeader[] headers = TransferHeader.split(fileSize, file.getName(), streams, Compression.CODEC_NONE, false);
+            SocketAddress remote = primary.getRemoteAddress();
+            OutgoingFile outgoing = new OutgoingFile(FileChannel.open(file.toPath(), StandardOpenOption.READ),
+                    fileSize, streams, limit, listener, result);
+
+            InetAddress peer = primary.socket().getInetAddress();
+            int sendBuffer = PeerTuning.shared().forPeer(peer).getSocketBuffer();
+            List<Socket> sockets = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                SocketChannel channel = i == 0 ? primary : SocketChannel.open();
+                RangeSender sender = new RangeSender(nextLoop(), channel, headers[i], outgoing);
+                outgoing.senders.add(sender);
+                sockets.add(channel.socket());
+                channel.configureBlocking(false);
+                if (i > 0 && sendBuffer > 0) {
+                    channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBuffer);
+                }
+                if (i == 0 || channel.connect(remote)) {
+                    sender.loop.register(channel, 0, sender, sender::onConnected);
+                } else {
+                    sender.timeout = AppConstants.CONNECTION_TIMEOUT;
+                    sender.loop.register(channel, SelectionKey.OP_CONNECT, sender, null);
+                }
+            }
+            PeerTuning.Probe probe = PeerTuning.shared().watch(peer, sockets, true, outgoing.sent::get);
+            result.whenComplete((sent, failure) -> probe.close());
+        } catch (IOException e) {
+            closeQuietly(primary);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Sends a batch collected by BatchTransfer over the connected channel, which is closed when done
+    public CompletableFuture<Long> sendBatch(SocketChannel channel, BatchTransfer.Manifest manifest,
+                                             List<BatchTransfer.Entry> entries, RateLimiter limit,
+                                             TransferEngine.ProgressListener listener) {
+        CompletableFuture<Long> result = new CompletableFuture<>();
+        try {
+            channel.configureBlocking(false);
+            BatchSender sender = new BatchSender(nextLoop(), channel, manifest, entries, limit, listener, result);
+            sender.loop.register(channel, 0, sender, sender::start);
+        } catch (IOException e) {
+            closeQuietly(channel);
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    interface Handler {
+        void handle(SelectionKey key) throws IOException;
+
+        void fail(Exception e);
+    }
+
+    interface IoTask {
+        void run() throws IOException;
+    }
+
+    interface Parser<T> {
+        T parse(DataInputStream in) throws IOException;
+    }
+
+    interface Encoder {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    static byte[] encode(Encoder encoder) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        encoder.write(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Parses one control message from the readable bytes of the buffer with the same
+     * DataInputStream code the blocking classes use. Returns null, consuming nothing, while
+     * the message is still incomplete.
+     */
+    static <T> T tryParse(ByteBuffer in, Parser<T> parser) throws IOException {
+        // Most messages are short, so try a small window before copying everything buffered
+        int window = Math.min(in.remaining(), 1024);
+        while (true) {
+            byte[] bytes = new byte[window];
+            in.duplicate().get(bytes);
+            ByteArrayInputStream source = new ByteArrayInputStream(bytes);
+            try {
+                T value = parser.parse(new DataInputStream(source));
+                in.position(in.position() + window - source.available());
+                return value;
+            } catch (EOFException e) {
+                if (window == in.remaining()) {
+                    return null;
+                }
+                window = in.remaining();
+            }
+        }
+    }
+
+    static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One selector thread. Registration and anything touching a connection from another thread
+     * goes through execute(), so connection state is only ever used on its own loop.
+     */
+    static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+        private long nextSweep;
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Loop thread only
+        void schedule(long delayNanos, Runnable task) {
+            timers.add(new Timer(System.nanoTime() + delayNanos, task));
+        }
+
+        void register(SelectableChannel channel, int ops, Handler handler, IoTask onRegistered) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, ops, handler);
+                    if (handler instanceof Connection connection) {
+                        connection.key = key;
+                        connection.lastActivity = System.currentTimeMillis();
+                    }
+                    if (onRegistered != null) {
+                        onRegistered.run();
+                    }
+                } catch (Exception e) {
+                    handler.fail(e);
+                }
+            });
+        }
+
+        // Takes the channel off this selector, so it can be switched back to blocking mode in then
+        void deregister(SelectionKey key, IoTask then, Handler handler) {
+            key.cancel();
+            execute(() -> {
+                try {
+                    // A cancelled key is only dropped by the next selection
+                    selector.selectNow();
+                    then.run();
+                } catch (Exception e) {
+                    handler.fail(e);
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(selectTimeout());
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Handler handler = (Handler) key.attachment();
+                        try {
+                            if (key.isValid()) {
+                                handler.handle(key);
+                            }
+                        } catch (Exception e) {
+                            handler.fail(e);
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    runTasks();
+                    runTimers();
+                    sweepTimeouts();
+                } catch (ClosedSelectorException e) {
+                    return;
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private long selectTimeout() {
+            long timeout = TIMEOUT_SWEEP_MS;
+            Timer next = timers.peek();
+            if (next != null) {
+                long due = TimeUnit.NANOSECONDS.toMillis(next.due - System.nanoTime());
+                timeout = Math.max(1, Math.min(timeout, due));
+            }
+            return tasks.isEmpty() ? timeout : 1;
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void runTimers() {
+            long now = System.nanoTime();
+            while (!timers.isEmpty() && timers.peek().due <= now) {
+                try {
+                    timers.poll().task.run();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void sweepTimeouts() {
+            long now = System.currentTimeMillis();
+            if (now < nextSweep) {
+                return;
+            }
+            nextSweep = now + TIMEOUT_SWEEP_MS;
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.checkTimeout(now);
+                }
+            }
+        }
+    }
+
+    private static class Timer implements Comparable<Timer> {
+        private final long due;
+        private final Runnable task;
+
+        Timer(long due, Runnable task) {
+            this.due = due;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(due, other.due);
+        }
+    }
+
+    /**
+     * Common plumbing for one socket: a pooled read buffer that grows only if a control message
+     * does not fit, a pending control write, and an idle timeout like SO_TIMEOUT.
+     */
+    abstract static class Connection implements Handler {
+        final EventLoop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer in;
+        private ByteBuffer out;
+        boolean paused;
+        boolean closed;
+        long lastActivity;
+        int timeout = AppConstants.SOCKET_TIMEOUT;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            this.in = BufferPool.SHARED.acquire();
+        }
+
+        // Called with the readable bytes of the read buffer; consumes what it can
+        abstract void onData(ByteBuffer data) throws IOException;
+
+        // A control message queued with send() has been fully written
+        void onSent() throws IOException {
+        }
+
+        void onWritable() throws IOException {
+        }
+
+        void onConnected() throws IOException {
+        }
+
+        void onEndOfStream() throws IOException {
+            throw new EOFException("Connection closed by peer");
+        }
+
+        abstract void onFailure(Exception e);
+
+        void onClose() {
+        }
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    timeout = AppConstants.SOCKET_TIMEOUT;
+                    interest(0);
+                    onConnected();
+                }
+                return;
+            }
+            if (key.isWritable()) {
+                if (out != null) {
+                    flushOut();
+                } else {
+                    onWritable();
+                }
+            }
+            if (!closed && key.isValid() && key.isReadable() && !paused) {
+                read();
+            }
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(in);
+            if (n == -1) {
+                onEndOfStream();
+                return;
+            }
+            process();
+            if (!closed && !paused && !in.hasRemaining()) {
+                // A control message larger than the buffer; body bytes are always consumed
+                ByteBuffer larger = ByteBuffer.allocate(in.capacity() * 2);
+                in.flip();
+                larger.put(in);
+                BufferPool.SHARED.release(in);
+                in = larger;
+            }
+        }
+
+        private void process() throws IOException {
+            in.flip();
+            try {
+                onData(in);
+            } finally {
+                if (!closed) {
+                    in.compact();
+                }
+            }
+        }
+
+        void send(byte[] bytes) throws IOException {
+            out = ByteBuffer.wrap(bytes);
+            flushOut();
+        }
+
+        private void flushOut() throws IOException {
+            channel.write(out);
+            if (out.hasRemaining()) {
+                interest(SelectionKey.OP_WRITE);
+                return;
+            }
+            out = null;
+            onSent();
+        }
+
+        void interest(int ops) {
+            if (key != null && key.isValid()) {
+                key.interestOps(ops);
+            }
+        }
+
+        // Stops reading, for flow control or while a blocking task works on this connection's behalf
+        void pause() {
+            paused = true;
+            interest(0);
+        }
+
+        void resume(int ops) throws IOException {
+            paused = false;
+            lastActivity = System.currentTimeMillis();
+            interest(ops);
+            if (in.position() > 0) {
+                process();
+            }
+        }
+
+        // Charges the bytes to the limit and, if it asks, stops this connection until it may go on with ops
+        void throttle(RateLimiter limit, long bytes, int ops) {
+            long waitNanos = limit.reserve(bytes);
+            if (waitNanos > 0) {
+                pause();
+                holdOff(limit, waitNanos, ops);
+            }
+        }
+
+        // Waits in slices, so a rate changed in the meantime applies right away
+        private void holdOff(RateLimiter limit, long waitNanos, int ops) {
+            loop.schedule(Math.min(waitNanos, AppConstants.RATE_LIMIT_SLICE_NANOS), () -> run(() -> {
+                long more = limit.pending();
+                if (more > 0) {
+                    holdOff(limit, more, ops);
+                } else {
+                    resume(ops);
+                }
+            }));
+        }
+
+        // Runs a task on this connection's loop, failing the connection if it throws
+        void run(IoTask task) {
+            loop.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+        }
+
+        void checkTimeout(long now) {
+            if (!closed && !paused && now - lastActivity > timeout) {
+                fail(new SocketTimeoutException("Connection timed out"));
+            }
+        }
+
+        @Override
+        public void fail(Exception e) {
+            if (closed) {
+                return;
+            }
+            close();
+            onFailure(e);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            if (in.isDirect()) {
+                BufferPool.SHARED.release(in);
+            }
+            onClose();
+        }
+    }
+
+    // Shared state of the connections sending one file
+    private static class OutgoingFile {
+        private final FileChannel fileChannel;
+        private final long fileSize;
+        private final int streams;
+        private final RateLimiter limit;
+        private final TransferEngine.ProgressListener listener;
+        private final CompletableFuture<Long> result;
+        private final List<RangeSender> senders = new ArrayList<>();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicInteger rangesDone = new AtomicInteger();
+
+        OutgoingFile(FileChannel fileChannel, long fileSize, int streams, RateLimiter limit,
+                     TransferEngine.ProgressListener listener, CompletableFuture<Long> result) {
+            this.fileChannel = fileChannel;
+            this.fileSize = fileSize;
+            this.streams = streams;
+            this.limit = limit;
+            this.listener = listener;
+            this.result = result;
+        }
+
+        void progress(long bytes) {
+            listener.onProgress(sent.addAndGet(bytes));
+        }
+
+        void rangeDone() {
+            if (rangesDone.incrementAndGet() == streams) {
+                closeQuietly(fileChannel);
+                result.complete(sent.get());
+            }
+        }
+
+        void fail(Exception e) {
+            if (result.completeExceptionally(e)) {
+                for (RangeSender sender : senders) {
+                    sender.run(sender::close);
+                }
+                closeQuietly(fileChannel);
+            }
+        }
+    }
+
+    private enum SendState { HEADER, AWAIT_OFFER, VERIFYING, START, BODY, DONE }
+
+    // Sends one byte range: header, resume negotiation, then the body with transferTo
+    private class RangeSender extends Connection {
+        private final TransferHeader header;
+        private final OutgoingFile outgoing;
+        private SendState state;
+        private long position;
+        private long remaining;
+
+        RangeSender(EventLoop loop, SocketChannel channel, TransferHeader header, OutgoingFile outgoing) {
+            super(loop, channel);
+            this.header = header;
+            this.outgoing = outgoing;
+        }
+
+        @Override
+        void onConnected() throws IOException {
+            state = SendState.HEADER;
+            send(encode(header::write));
+        }
+
+        @Override
+        void onSent() {
+            if (state == SendState.HEADER) {
+                // The receiver may have to hash a large prefix before it answers
+                state = SendState.AWAIT_OFFER;
+                timeout = AppConstants.RESUME_VERIFY_TIMEOUT;
+                interest(SelectionKey.OP_READ);
+            } else if (state == SendState.START) {
+                state = SendState.BODY;
+                timeout = AppConstants.SOCKET_TIMEOUT;
+                interest(SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        void onData(ByteBuffer data) throws IOException {
+            if (state != SendState.AWAIT_OFFER) {
+                if (data.hasRemaining()) {
+                    throw new IOException("Unexpected data from receiver");
+                }
+                return;
+            }
+            Checkpoint.Offer offer = tryParse(data, in -> Checkpoint.readOffer(in, header.getLength()));
+            if (offer == null) {
+                return;
+            }
+            if (offer.getCodec() != Compression.CODEC_NONE || offer.isVerify()) {
+                throw new IOException("Receiver chose options that were not offered");
+            }
+            state = SendState.VERIFYING;
+            pause();
+            blockingTasks.execute(() -> {
+                try {
+                    long start = offer.getHeld() > 0
+                            ? Checkpoint.verifiedPrefix(outgoing.fileChannel, header.getOffset(),
+                                    offer.getHeld(), offer.getHashes())
+                            : 0;
+                    run(() -> startBody(start));
+                } catch (IOException e) {
+                    run(() -> {
+                        throw e;
+                    });
+                }
+            });
+        }
+
+        private void startBody(long start) throws IOException {
+            position = header.getOffset() + start;
+            remaining = header.getLength() - start;
+            if (start > 0) {
+                outgoing.progress(start);
+            }
+            state = SendState.START;
+            paused = false;
+            send(encode(out -> out.writeLong(start)));
+        }
+
+        @Override
+        void onWritable() throws IOException {
+            if (state != SendState.BODY) {
+                return;
+            }
+            for (int i = 0; i < MAX_WRITES_PER_EVENT && remaining > 0; i++) {
+                long n = outgoing.fileChannel.transferTo(position,
+                        Math.min(remaining, AppConstants.DIRECT_BUFFER_SIZE * 4L), channel);
+                if (n <= 0) {
+                    if (position >= outgoing.fileSize || position >= outgoing.fileChannel.size()) {
+                        throw new IOException("File was truncated during transfer");
+                    }
+                    return; // Socket buffer is full, wait for the next OP_WRITE
+                }
+                position += n;
+                remaining -= n;
+                outgoing.progress(n);
+                throttle(outgoing.limit, n, SelectionKey.OP_WRITE);
+                if (paused && remaining > 0) {
+                    return;
+                }
+            }
+            if (remaining == 0) {
+                state = SendState.DONE;
+                close();
+                outgoing.rangeDone();
+            }
+        }
+
+        @Override
+        void onEndOfStream() throws IOException {
+            if (state != SendState.DONE) {
+                throw new EOFException("Receiver closed the connection");
+            }
+        }
+
+        @Override
+        void onFailure(Exception e) {
+            outgoing.fail(e);
+        }
+    }
+
+    private enum BatchState { SENDING, AWAIT_ACK, DONE }
+
+    /**
+     * Sends a batch through a direct staging buffer: records and small bodies are packed into
+     * it back to back, and bodies over the zero-copy threshold go out with transferTo.
+     */
+    private class BatchSender extends Connection {
+        private final BatchTransfer.Manifest manifest;
+        private final List<BatchTransfer.Entry> entries;
+        private final RateLimiter limit;
+        private final TransferEngine.ProgressListener listener;
+        private final CompletableFuture<Long> result;
+        private final ByteBuffer staging = BufferPool.SHARED.acquire();
+        private BatchState state = BatchState.SENDING;
+        private int nextEntry;
+        private boolean endWritten;
+        private FileChannel current;
+        private boolean zeroCopy;
+        private long currentPosition;
+        private long currentRemaining;
+        private long sent;
+        private long uncharged;
+
+        BatchSender(EventLoop loop, SocketChannel channel, BatchTransfer.Manifest manifest,
+                    List<BatchTransfer.Entry> entries, RateLimiter limit, TransferEngine.ProgressListener listener,
+                    CompletableFuture<Long> result) {
+            super(loop, channel);
+            this.manifest = manifest;
+            this.entries = entries;
+            this.limit = limit;
+            this.listener = listener;
+            this.result = result;
+        }
+
+        void start() throws IOException {
+            staging.put(encode(out -> BatchTransfer.writeManifest(out, manifest)));
+            pump();
+        }
+
+        @Override
+        void onWritable() throws IOException {
+            if (state == BatchState.SENDING) {
+                pump();
+            }
+        }
+
+        private void pump() throws IOException {
+            for (int i = 0; i < MAX_WRITES_PER_EVENT; i++) {
+                if (throttled()) {
+                    return;
+                }
+                if (staging.position() > 0) {
+                    staging.flip();
+                    channel.write(staging);
+                    boolean drained = !staging.hasRemaining();
+                    staging.compact();
+                    if (!drained) {
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                if (current != null && zeroCopy) {
+                    long n = current.transferTo(currentPosition,
+                            Math.min(currentRemaining, AppConstants.DIRECT_BUFFER_SIZE * 4L), channel);
+                    if (n <= 0) {
+                        if (currentPosition >= current.size()) {
+                            throw new IOException("File was truncated during transfer");
+                        }
+                        interest(SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    currentPosition += n;
+                    currentRemaining -= n;
+                    progress(n);
+                    if (currentRemaining == 0) {
+                        closeCurrent();
+                    }
+                    continue;
+                }
+                if (!fill() && staging.position() == 0) {
+                    // The receiver confirms what it wrote once the whole batch is on disk
+                    state = BatchState.AWAIT_ACK;
+                    interest(SelectionKey.OP_READ);
+                    return;
+                }
+            }
+            // Give the other connections on this loop a turn
+            interest(SelectionKey.OP_WRITE);
+        }
+
+        // Packs records and small bodies into the staging buffer; false once nothing more fits or is left
+        private boolean fill() throws IOException {
+            boolean added = false;
+            while (staging.hasRemaining()) {
+                if (current != null) {
+                    if (zeroCopy) {
+                        return added;
+                    }
+                    int limit = staging.limit();
+                    staging.limit(staging.position() + (int) Math.min(staging.remaining(), currentRemaining));
+                    int n = current.read(staging);
+                    staging.limit(limit);
+                    if (n == -1) {
+                        throw new IOException("File was truncated during transfer");
+                    }
+                    currentRemaining -= n;
+                    progress(n);
+                    added = true;
+                    if (currentRemaining == 0) {
+                        closeCurrent();
+                    }
+                    continue;
+                }
+                if (endWritten) {
+                    return added;
+                }
+                if (nextEntry == entries.size()) {
+                    staging.put(BatchTransfer.ENTRY_END);
+                    endWritten = true;
+                    return true;
+                }
+                BatchTransfer.Entry entry = entries.get(nextEntry);
+                byte[] record = encode(out -> BatchTransfer.writeRecord(out, entry));
+                if (record.length > staging.remaining()) {
+                    return added;
+                }
+                staging.put(record);
+                nextEntry++;
+                added = true;
+                if (!entry.isDirectory() && entry.getSize() > 0) {
+                    current = FileChannel.open(entry.getSource().toPath(), StandardOpenOption.READ);
+                    zeroCopy = entry.getSize() >= AppConstants.BATCH_ZERO_COPY_THRESHOLD;
+                    currentPosition = 0;
+                    currentRemaining = entry.getSize();
+                }
+            }
+            return added;
+        }
+
+        private void progress(long bytes) {
+            sent += bytes;
+            uncharged += bytes;
+            listener.onProgress(sent);
+        }
+
+        // Charges what was sent since the last check; true while the limit holds this connection off
+        private boolean throttled() {
+            if (uncharged > 0) {
+                throttle(limit, uncharged, SelectionKey.OP_WRITE);
+                uncharged = 0;
+            }
+            return paused;
+        }
+
+        private void closeCurrent() {
+            closeQuietly(current);
+            current = null;
+            zeroCopy = false;
+        }
+
+        @Override
+        void onData(ByteBuffer data) throws IOException {
+            if (state != BatchState.AWAIT_ACK) {
+                if (data.hasRemaining()) {
+                    throw new IOException("Unexpected data from receiver");
+                }
+                return;
+            }
+            Boolean acknowledged = tryParse(data, in -> {
+                BatchTransfer.checkAck(in, manifest);
+                return Boolean.TRUE;
+            });
+            if (acknowledged != null) {
+                state = BatchState.DONE;
+                close();
+                result.complete(sent);
+            }
+        }
+
+        @Override
+        void onFailure(Exception e) {
+            result.completeExceptionally(e);
+        }
+
+        @Override
+        void onClose() {
+            closeCurrent();
+            BufferPool.SHARED.release(staging);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends one file as N byte ranges over N concurrent sockets. The first range goes over the
+ * already connected socket; the others open their own connections to the same receiver.
+ */
+public class ParallelTransfer {
+
+    // One connection of a transfer whose header has already been read
+    public static class Stream {
+        private final Socket socket;
+        private final TransferEngine.HeaderInputStream in;
+        private final TransferHeader header;
+
+        public Stream(Socket socket, TransferEngine.HeaderInputStream in, TransferHeader header) {
+            this.socket = socket;
+            this.in = in;
+            this.header = header;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        public TransferHeader getHeader() {
+            return header;
+        }
+    }
+
+    // Supplies the remaining connections of a multi-stream transfer
+    public interface StreamAcceptor {
+        Stream accept() throws IOException;
+    }
+
+    private ParallelTransfer() {
+    }
+
+    /**
+     * Sends the file, compressed with codec and verified end to end if the receiver accepts them.
+     * With mapped, plain bodies of very large files go out through MappedTransfer.
+     */
+    public static long send(File file, Socket primary, int requestedStreams, byte codec, boolean verify,
+                            boolean mapped, TransferEngine.ProgressListener listener) throws Exception {
+        long fileSize = file.length();
+        int streams = TransferHeader.streamCount(fileSize, requestedStreams);
+        TransferHeader[] headers = TransferHeader.split(fileSize, file.getName(), streams, codec, verify);
+        ProgressTotal total = new ProgressTotal(listener);
+
+        List<Socket> sockets = new ArrayList<>();
+        sockets.add(primary);
+        ExecutorService executor = Executors.newFixedThreadPool(streams);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 1; i < streams; i++) {
+                sockets.add(openStream(primary));
+            }
+
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < streams; i++) {
+                Socket socket = sockets.get(i);
+                TransferHeader header = headers[i];
+                TransferEngine.ProgressListener rangeListener = total.newRange();
+                results.add(executor.submit(() -> sendRange(fileChannel, socket, header, mapped, rangeListener)));
+            }
+            PeerTuning.Probe probe = PeerTuning.shared().watch(primary.getInetAddress(), sockets, true,
+                    total.moved::get);
+            try {
+                return awaitAll(results, sockets);
+            } finally {
+                probe.close();
+            }
+        } finally {
+            executor.shutdownNow();
+            for (int i = 1; i < sockets.size(); i++) {
+                closeQuietly(sockets.get(i));
+            }
+        }
+    }
+
+    private static long sendRange(FileChannel fileChannel, Socket socket, TransferHeader header, boolean mapped,
+                                  TransferEngine.ProgressListener listener) throws IOException {
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.BUFFER_SIZE));
+        header.write(dataOut);
+        dataOut.flush();
+
+        // Skip whatever the receiver already holds from an earlier, interrupted attempt
+        Checkpoint.Offer offer = readOffer(socket, header);
+        if ((offer.getCodec() != Compression.CODEC_NONE && offer.getCodec() != header.getCodec())
+                || (offer.isVerify() && !header.isVerify())) {
+            throw new IOException("Receiver chose options that were not offered");
+        }
+        // Compression may be declined, verification may not: the user asked for an end-to-end check
+        if (header.isVerify() && !offer.isVerify()) {
+            throw new IOException("Receiver cannot verify transfers; send again without Verify");
+        }
+        long start = offer.getHeld() > 0
+                ? Checkpoint.verifiedPrefix(fileChannel, header.getOffset(), offer.getHeld(), offer.getHashes())
+                : 0;
+        dataOut.writeLong(start);
+        dataOut.flush();
+        if (start > 0) {
+            Metrics.resumed();
+            listener.onSkipped(start);
+        }
+
+        TransferEngine.ProgressListener bodyListener = transferred -> listener.onProgress(start + transferred);
+        long position = header.getOffset() + start;
+        long count = header.getLength() - start;
+        long sent;
+        if (offer.getCodec() == Compression.CODEC_DEFLATE) {
+            sent = Compression.send(fileChannel, position, count, offer.isVerify(), dataOut, bodyListener);
+        } else if (offer.isVerify()) {
+            // Hashing needs the bytes in memory, so a verified body is read once instead of sent with transferTo
+            sent = Integrity.send(fileChannel, position, count, dataOut, bodyListener);
+        } else if (mapped && MappedTransfer.isWorthwhile(count)) {
+            sent = MappedTransfer.send(fileChannel, position, count, socket, bodyListener);
+        } else {
+            sent = TransferEngine.sendFile(fileChannel, position, count, socket, dataOut, bodyListener);
+        }
+        dataOut.flush();
+        return start + sent;
+    }
+
+    // Reads the receiver's answer to the header: accepted codec, held prefix and its block hashes
+    private static Checkpoint.Offer readOffer(Socket socket, TransferHeader header) throws IOException {
+        DataInputStream dataIn = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), AppConstants.BUFFER_SIZE));
+        int timeout = socket.getSoTimeout();
+        // The receiver may have to hash a large prefix before it answers
+        socket.setSoTimeout(AppConstants.RESUME_VERIFY_TIMEOUT);
+        try {
+            return Checkpoint.readOffer(dataIn, header.getLength());
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    private static Socket openStream(Socket primary) throws IOException {
+        Socket socket = SocketChannel.open().socket();
+        socket.setReuseAddress(true);
+        long connectStart = System.nanoTime();
+        socket.connect(new InetSocketAddress(primary.getInetAddress(), primary.getPort()), AppConstants.CONNECTION_TIMEOUT);
+        long connectNanos = System.nanoTime() - connectStart;
+        PeerTuning.shared().recordRtt(socket.getInetAddress(), connectNanos);
+        Metrics.connected(connectNanos);
+        TransferEngine.configureSendBuffer(socket);
+        socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+        return socket;
+    }
+
+    /**
+     * Receives every range of the transfer announced by the first header. The remaining
+     * connections are taken from the acceptor; success is only reported once each range has
+     * been fully written at its offset into the preallocated file. Progress is checkpointed
+     * next to the file so an interrupted transfer can resume where it stopped. With mapped,
+     * plain bodies of very large files are read into mapped windows of the file.
+     */
+    public static long receive(Stream first, File saveFile, StreamAcceptor acceptor, boolean mapped,
+                               TransferEngine.ProgressListener listener) throws Exception {
+        TransferHeader firstHeader = first.header;
+        List<Stream> streams = new ArrayList<>();
+        List<Socket> sockets = new ArrayList<>();
+        streams.add(first);
+        sockets.add(first.socket);
+
+        Checkpoint checkpoint = Checkpoint.open(saveFile, firstHeader.getFileSize());
+        ExecutorService executor = Executors.newFixedThreadPool(firstHeader.getStreams());
+        try (RandomAccessFile raf = new RandomAccessFile(saveFile, "rw")) {
+            while (streams.size() < firstHeader.getStreams()) {
+                Stream stream = acceptor.accept();
+                if (stream.header.getTransferId() != firstHeader.getTransferId()) {
+                    closeQuietly(stream.socket);
+                    continue;
+                }
+                streams.add(stream);
+                sockets.add(stream.socket);
+            }
+
+            // Preallocate so every stream can write at its own offset, keeping a resumable partial file
+            if (!checkpoint.isResumable()) {
+                raf.setLength(0);
+            }
+            raf.setLength(firstHeader.getFileSize());
+            FileChannel fileChannel = raf.getChannel();
+            ProgressTotal total = new ProgressTotal(listener);
+
+            List<Future<Long>> results = new ArrayList<>();
+            for (Stream stream : streams) {
+                TransferEngine.ProgressListener rangeListener = total.newRange();
+                results.add(executor.submit(() -> receiveRange(fileChannel, stream.socket, stream.in,
+                        stream.header, checkpoint, mapped, rangeListener)));
+            }
+
+            PeerTuning.Probe probe = PeerTuning.shared().watch(first.socket.getInetAddress(), sockets, false,
+                    total.moved::get);
+            try {
+                long received;
+                try {
+                    received = awaitAll(results, sockets);
+                } finally {
+                    probe.close();
+                }
+                checkpoint.delete();
+                return received;
+            } catch (Exception e) {
+                saveAfterFailure(executor, sockets, checkpoint, fileChannel, e);
+                throw e;
+            }
+        } finally {
+            executor.shutdownNow();
+            for (int i = 1; i < sockets.size(); i++) {
+                closeQuietly(sockets.get(i));
+            }
+        }
+    }
+
+    /**
+     * Stops the ranges before the last checkpoint save, so none of them is still saving or
+     * writing. Closing the sockets ends their reads; the pool is not interrupted, which would
+     * close the shared file channel. A failed save is attached to failure rather than hiding it.
+     */
+    private static void saveAfterFailure(ExecutorService executor, List<Socket> sockets, Checkpoint checkpoint,
+                                         FileChannel fileChannel, Exception failure) {
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(AppConstants.SOCKET_TIMEOUT, TimeUnit.MILLISECONDS);
+            checkpoint.save(fileChannel);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure.addSuppressed(e);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    private static long receiveRange(FileChannel fileChannel, Socket socket, TransferEngine.HeaderInputStream headerIn,
+                                     TransferHeader header, Checkpoint checkpoint, boolean mapped,
+                                     TransferEngine.ProgressListener listener) throws IOException {
+        long offset = header.getOffset();
+        long length = header.getLength();
+        byte codec = Compression.isSupported(header.getCodec()) ? header.getCodec() : Compression.CODEC_NONE;
+        boolean verify = header.isVerify();
+        long start = offerResume(fileChannel, socket, headerIn, header, codec, verify, checkpoint.held(offset, length));
+        checkpoint.update(offset, length, start);
+        if (start > 0) {
+            Metrics.resumed();
+            listener.onSkipped(start);
+        }
+
+        TransferEngine.ProgressListener bodyListener = transferred -> {
+            checkpoint.update(offset, length, start + transferred);
+            listener.onProgress(start + transferred);
+            try {
+                checkpoint.saveIfDue(fileChannel);
+            } catch (IOException e) {
+                System.err.println("Could not save checkpoint: " + e.getMessage());
+            }
+        };
+        long received = start;
+        if (codec == Compression.CODEC_DEFLATE) {
+            received += Compression.receive(new DataInputStream(headerIn), fileChannel, offset + start, length - start,
+                    verify, bodyListener);
+        } else if (verify) {
+            received += Integrity.receive(new DataInputStream(headerIn), fileChannel, offset + start, length - start,
+                    bodyListener);
+        } else if (mapped && MappedTransfer.isWorthwhile(length - start)) {
+            received += MappedTransfer.receive(headerIn, socket, fileChannel, offset + start, length - start,
+                    bodyListener);
+        } else {
+            received += TransferEngine.receiveFile(headerIn, socket, fileChannel, offset + start, length - start,
+                    bodyListener);
+        }
+        if (received != length) {
+            throw new IOException("Incomplete file transfer");
+        }
+        return received;
+    }
+
+    // Tells the sender the options to use and how much of the range is already here, and reads back where it will resume
+    private static long offerResume(FileChannel fileChannel, Socket socket, TransferEngine.HeaderInputStream headerIn,
+                                    TransferHeader header, byte codec, boolean verify, long held) throws IOException {
+        byte[][] hashes = Checkpoint.hashBlocks(fileChannel, header.getOffset(), held);
+        DataOutputStream dataOut = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream(), AppConstants.BUFFER_SIZE));
+        Checkpoint.writeOffer(dataOut, new Checkpoint.Offer(codec, verify, held, hashes));
+        dataOut.flush();
+
+        int timeout = socket.getSoTimeout();
+        // The sender hashes its own copy of the prefix before it answers
+        socket.setSoTimeout(AppConstants.RESUME_VERIFY_TIMEOUT);
+        long offerStart = System.nanoTime();
+        try {
+            long start = new DataInputStream(headerIn).readLong();
+            long offerNanos = System.nanoTime() - offerStart;
+            Metrics.offerAnswered(offerNanos);
+            if (held == 0) {
+                // Nothing to hash, so the answer takes one round trip
+                PeerTuning.shared().recordRtt(socket.getInetAddress(), offerNanos);
+            }
+            if (start < 0 || start > held) {
+                throw new IOException("Invalid resume offset");
+            }
+            return start;
+        } finally {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    // Waits for every stream; the first failure closes all sockets so the others stop too
+    private static long awaitAll(List<Future<Long>> results, List<Socket> sockets) throws Exception {
+        long totalBytes = 0;
+        try {
+            for (Future<Long> result : results) {
+                totalBytes += result.get();
+            }
+        } catch (ExecutionException e) {
+            for (Socket socket : sockets) {
+                closeQuietly(socket);
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        return totalBytes;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Sums the progress of all ranges into one running total
+    private static class ProgressTotal {
+        private final AtomicLong total = new AtomicLong();
+        // Only bytes that crossed the network, for PeerTuning
+        private final AtomicLong moved = new AtomicLong();
+        private final TransferEngine.ProgressListener listener;
+
+        ProgressTotal(TransferEngine.ProgressListener listener) {
+            this.listener = listener;
+        }
+
+        TransferEngine.ProgressListener newRange() {
+            return new TransferEngine.ProgressListener() {
+                private long last;
+
+                @Override
+                public void onProgress(long transferred) {
+                    long delta = advance(transferred);
+                    moved.addAndGet(delta);
+                    listener.onProgress(total.addAndGet(delta));
+                }
+
+                @Override
+                public void onSkipped(long transferred) {
+                    listener.onSkipped(total.addAndGet(advance(transferred)));
+                }
+
+                private long advance(long transferred) {
+                    long delta = transferred - last;
+                    last = transferred;
+                    return delta;
+                }
+            };
+        }
+    }
+}
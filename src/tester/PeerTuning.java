@@ -0,0 +1,239 @@
+package tester;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Socket buffer and chunk sizes per peer, learned from the transfers themselves. A Probe looks
+ * at the first TUNING_PROBE_MS of a transfer, works out the bandwidth-delay product from the
+ * throughput and the round trip time, and resizes the socket buffers of the running transfer:
+ * up when the window looks like the limit, down when it is far larger than the link needs.
+ * What it settles on is saved next to the history and applied to the next connection with
+ * that peer. Peers never measured keep the operating system's own sizing.
+ */
+public class PeerTuning {
+    private static final String FILE_NAME = "tuning.properties";
+    private static final PeerTuning SHARED = new PeerTuning(new File(HistoryStore.folderPath(), FILE_NAME));
+    private static final ScheduledExecutorService PROBES = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("letsshare-tuning").daemon().factory());
+
+    public static class Settings {
+        private final int socketBuffer;
+        private final int chunkSize;
+
+        Settings(int socketBuffer, int chunkSize) {
+            this.socketBuffer = socketBuffer;
+            this.chunkSize = chunkSize;
+        }
+
+        // 0 leaves the buffer to the operating system
+        public int getSocketBuffer() {
+            return socketBuffer;
+        }
+
+        // Size of the reads and writes the stream loops and pipelines move at once
+        public int getChunkSize() {
+            return chunkSize;
+        }
+    }
+
+    private static final Settings UNTUNED = new Settings(0, AppConstants.PIPELINE_BUFFER_SIZE);
+
+    private final File file;
+    private final Map<String, Settings> settings = new ConcurrentHashMap<>();
+    // Smallest round trip seen per peer, which leaves out queueing delay
+    private final Map<String, Long> rtts = new ConcurrentHashMap<>();
+    private boolean loaded;
+
+    public PeerTuning(File file) {
+        this.file = file;
+    }
+
+    public static PeerTuning shared() {
+        return SHARED;
+    }
+
+    public Settings forPeer(InetAddress peer) {
+        load();
+        return peer != null ? settings.getOrDefault(peer.getHostAddress(), UNTUNED) : UNTUNED;
+    }
+
+    // Takes a round trip measured by the caller, like the time a TCP connect took
+    public void recordRtt(InetAddress peer, long nanos) {
+        if (peer != null && nanos > 0) {
+            rtts.merge(peer.getHostAddress(), nanos, Math::min);
+        }
+    }
+
+    public long getRttNanos(InetAddress peer) {
+        return rtts.getOrDefault(peer.getHostAddress(), 0L);
+    }
+
+    /**
+     * Watches a transfer to peer over the given sockets, with counter returning the bytes moved
+     * so far. The sockets are resized once, after TUNING_PROBE_MS; close the probe when the
+     * transfer ends so a short one is still measured if it ran long enough.
+     */
+    public Probe watch(InetAddress peer, List<Socket> sockets, boolean sending, LongSupplier counter) {
+        return new Probe(peer, sockets, sending, counter);
+    }
+
+    public class Probe implements AutoCloseable {
+        private final InetAddress peer;
+        private final List<Socket> sockets;
+        private final boolean sending;
+        private final LongSupplier counter;
+        private final long startBytes;
+        private final int startBuffer;
+        private final long startTime = System.nanoTime();
+        private final ScheduledFuture<?> check;
+        private boolean done;
+
+        private Probe(InetAddress peer, List<Socket> sockets, boolean sending, LongSupplier counter) {
+            this.peer = peer;
+            this.sockets = List.copyOf(sockets);
+            this.sending = sending;
+            this.counter = counter;
+            this.startBytes = counter.getAsLong();
+            // Read now: by the time a closed probe is evaluated the sockets are usually closed too
+            this.startBuffer = bufferSize(this.sockets, sending);
+            this.check = PROBES.schedule(this::evaluate, AppConstants.TUNING_PROBE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void evaluate() {
+            if (done) {
+                return;
+            }
+            done = true;
+            long elapsedNanos = System.nanoTime() - startTime;
+            long rtt = getRttNanos(peer);
+            if (rtt == 0 || startBuffer == 0
+                    || elapsedNanos < TimeUnit.MILLISECONDS.toNanos(AppConstants.TUNING_MIN_SAMPLE_MS)) {
+                return;
+            }
+            try {
+                // Every stream has its own window, so size for one stream's share
+                long throughput = (counter.getAsLong() - startBytes) * 1_000_000_000L / elapsedNanos / sockets.size();
+                long bdp = throughput * rtt / 1_000_000_000L;
+                int current = startBuffer;
+                long target;
+                if (bdp * 2 >= current) {
+                    target = Math.max(current * 2L, bdp * 2); // The window is likely what holds it back
+                } else if (bdp * 4 < current) {
+                    target = bdp * 2;
+                } else {
+                    target = current;
+                }
+                Settings tuned = settingsFor(target);
+                for (Socket socket : sockets) {
+                    if (!socket.isClosed()) {
+                        if (sending) {
+                            socket.setSendBufferSize(tuned.socketBuffer);
+                        } else {
+                            socket.setReceiveBufferSize(tuned.socketBuffer);
+                        }
+                    }
+                }
+                remember(peer, tuned);
+            } catch (IOException e) {
+                System.err.println("Could not tune connection to " + peer.getHostAddress() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (check.cancel(false)) {
+                PROBES.execute(this::evaluate);
+            }
+        }
+    }
+
+    private static int bufferSize(List<Socket> sockets, boolean sending) {
+        if (sockets.isEmpty()) {
+            return 0;
+        }
+        try {
+            Socket first = sockets.get(0);
+            return sending ? first.getSendBufferSize() : first.getReceiveBufferSize();
+        } catch (SocketException e) {
+            return 0;
+        }
+    }
+
+    // Buffers are powers of two within TUNING_MIN_BUFFER and TUNING_MAX_BUFFER, chunks a quarter of that
+    static Settings settingsFor(long bytes) {
+        long clamped = Math.max(AppConstants.TUNING_MIN_BUFFER, Math.min(AppConstants.TUNING_MAX_BUFFER, bytes));
+        int buffer = (int) Math.min(AppConstants.TUNING_MAX_BUFFER, Long.highestOneBit(clamped - 1) << 1);
+        int chunk = Math.max(AppConstants.BUFFER_SIZE, Math.min(AppConstants.TUNING_MAX_CHUNK, buffer / 4));
+        return new Settings(buffer, chunk);
+    }
+
+    private void remember(InetAddress peer, Settings tuned) throws IOException {
+        settings.put(peer.getHostAddress(), tuned);
+        save();
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            System.err.println("Could not read tuning: " + e.getMessage());
+            return;
+        }
+        for (String peer : properties.stringPropertyNames()) {
+            String[] values = properties.getProperty(peer).split(",");
+            try {
+                settings.put(peer, new Settings(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim())));
+            } catch (RuntimeException e) {
+                System.err.println("Ignoring tuning for " + peer + ": " + properties.getProperty(peer));
+            }
+        }
+    }
+
+    // Written aside and moved into place, so a crash never leaves a half-written file
+    private synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        settings.forEach((peer, tuned) -> properties.setProperty(peer, tuned.socketBuffer + "," + tuned.chunkSize));
+        File folder = file.getAbsoluteFile().getParentFile();
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        // A name of its own, as the sender and a receiver on the same machine may save at once
+        File temp = File.createTempFile(FILE_NAME, ".tmp", folder);
+        try {
+            try (OutputStream out = new FileOutputStream(temp)) {
+                properties.store(out, "LetsShare socket buffer and chunk size per peer");
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            // Gone already once the move went through
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package tester;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Moves a body through a bounded ring of PIPELINE_DEPTH reusable buffers: a pipeline thread
+ * fills them from one side while the caller drains them into the other, so disk and network
+ * work at the same time and the slower of the two sets the pace. Buffers cycle between a free
+ * and a filled queue, nothing is allocated per chunk.
+ */
+public class Pipeline {
+    private static final ExecutorService FILLERS = Executors.newCachedThreadPool(
+            Thread.ofPlatform().name("letsshare-pipeline-", 0).daemon().factory());
+    // Marks the end of the body in the filled queue
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    public interface Fill {
+        // Reads the next chunk into the cleared buffer and returns its length, or -1 when the body is done
+        int fill(ByteBuffer buffer) throws IOException;
+    }
+
+    public interface Drain {
+        // Consumes the flipped buffer; it goes back to the free queue once this returns
+        void drain(ByteBuffer buffer) throws IOException;
+    }
+
+    private final Metrics.Io source;
+    private final Metrics.Io target;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final ByteBuffer[] buffers;
+    private final boolean pooled;
+    private volatile boolean stopped;
+    private volatile Throwable failure;
+
+    private Pipeline(int bufferSize, boolean direct, Metrics.Io source) {
+        this.source = source;
+        this.target = other(source);
+        int depth = AppConstants.PIPELINE_DEPTH;
+        free = new ArrayBlockingQueue<>(depth);
+        filled = new ArrayBlockingQueue<>(depth + 1);
+        buffers = new ByteBuffer[depth];
+        pooled = direct && bufferSize == BufferPool.SHARED.getBufferSize();
+        for (int i = 0; i < depth; i++) {
+            buffers[i] = pooled ? BufferPool.SHARED.acquire()
+                    : direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            free.add(buffers[i]);
+        }
+    }
+
+    /**
+     * Fills on a pipeline thread and drains on the calling thread until fill reports the end,
+     * then returns the number of bytes drained. Direct buffers of the shared pool size come
+     * from BufferPool.SHARED. A failure on either side stops both and is rethrown here. Bodies
+     * under PIPELINE_MIN_BYTES run both sides on the calling thread with a single buffer.
+     * source is what fill reads from, the drain side counts as the other one in Metrics.
+     */
+    public static long run(long count, int bufferSize, boolean direct, Metrics.Io source, Fill fill,
+                           Drain drain) throws IOException {
+        if (count < AppConstants.PIPELINE_MIN_BYTES) {
+            ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            long drained = 0;
+            while (true) {
+                long start = System.nanoTime();
+                int filled = fill.fill(buffer.clear());
+                long filledAt = System.nanoTime();
+                Metrics.io(source, filledAt - start);
+                if (filled < 0) {
+                    break;
+                }
+                buffer.flip();
+                drained += buffer.remaining();
+                drain.drain(buffer);
+                Metrics.io(other(source), System.nanoTime() - filledAt);
+            }
+            return drained;
+        }
+        return new Pipeline(bufferSize, direct, source).run(fill, drain);
+    }
+
+    private static Metrics.Io other(Metrics.Io io) {
+        return io == Metrics.Io.DISK ? Metrics.Io.NETWORK : Metrics.Io.DISK;
+    }
+
+    private long run(Fill fill, Drain drain) throws IOException {
+        FILLERS.execute(() -> produce(fill));
+        long drained = 0;
+        boolean done = false;
+        try {
+            while (true) {
+                ByteBuffer buffer = filled.take();
+                if (buffer == END) {
+                    break;
+                }
+                drained += buffer.remaining();
+                long start = System.nanoTime();
+                drain.drain(buffer);
+                Metrics.io(target, System.nanoTime() - start);
+                free.put(buffer);
+            }
+            done = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while transferring");
+        } finally {
+            stopped = true;
+            // Wakes the filler if it waits for a free buffer
+            free.offer(END);
+        }
+        rethrow(failure);
+        if (done && pooled) {
+            // The filler has finished with every buffer, so they can go back to the pool
+            for (ByteBuffer buffer : buffers) {
+                BufferPool.SHARED.release(buffer);
+            }
+        }
+        return drained;
+    }
+
+    // Never interrupted: an interrupt during a FileChannel read would close the shared channel
+    private void produce(Fill fill) {
+        try {
+            while (!stopped) {
+                ByteBuffer buffer = free.take();
+                if (buffer == END) {
+                    return;
+                }
+                buffer.clear();
+                long start = System.nanoTime();
+                int read = fill.fill(buffer);
+                Metrics.io(source, System.nanoTime() - start);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                filled.put(buffer);
+            }
+        } catch (Throwable e) {
+            failure = e;
+        }
+        filled.offer(END);
+    }
+
+    private static void rethrow(Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new IOException(failure);
+    }
+}
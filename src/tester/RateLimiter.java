@@ -0,0 +1,97 @@
+package tester;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket in bytes per second. Callers take tokens after moving a chunk and sleep off
+ * any debt, which pushes back on the socket. A rate of 0 means unlimited, and the rate can
+ * be changed while transfers are running. A limiter may have a parent that is charged for
+ * the same bytes, so a per-transfer cap sits under a cap shared by every transfer.
+ */
+public class RateLimiter {
+    // Everything this process sends, across all transfers
+    public static final RateLimiter SEND = new RateLimiter(0);
+
+    private final RateLimiter parent;
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public RateLimiter(long bytesPerSecond) {
+        this(bytesPerSecond, null);
+    }
+
+    public RateLimiter(long bytesPerSecond, RateLimiter parent) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.parent = parent;
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        if (this.bytesPerSecond <= 0) {
+            tokens = 0; // Nothing was counted while unlimited
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, burst());
+    }
+
+    public void acquire(long bytes) {
+        long waitNanos = reserve(bytes);
+        // Sleep in slices, so a rate changed during a long wait applies right away
+        while (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.min(waitNanos, AppConstants.RATE_LIMIT_SLICE_NANOS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            waitNanos = pending();
+        }
+    }
+
+    // Takes the tokens without sleeping and returns how long the caller should hold off
+    public long reserve(long bytes) {
+        long waitNanos = parent != null ? parent.reserve(bytes) : 0;
+        synchronized (this) {
+            if (bytesPerSecond <= 0) {
+                return waitNanos;
+            }
+            refill();
+            tokens -= bytes;
+            return Math.max(waitNanos, debtNanos());
+        }
+    }
+
+    // How much longer the bytes already taken keep the caller waiting at the current rates
+    public long pending() {
+        long waitNanos = parent != null ? parent.pending() : 0;
+        synchronized (this) {
+            if (bytesPerSecond <= 0) {
+                return waitNanos;
+            }
+            refill();
+            return Math.max(waitNanos, debtNanos());
+        }
+    }
+
+    private long debtNanos() {
+        return tokens < 0 ? (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond) : 0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(burst(), tokens + (now - lastRefill) * (double) bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+    }
+
+    // A quarter second worth of bytes keeps the rate smooth without starving large chunks
+    private double burst() {
+        return bytesPerSecond / 4.0;
+    }
+}
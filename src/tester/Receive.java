@@ -1,21 +1,26 @@
 package tester;
 
 import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
 import java.io.*;
-import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Receive extends BaseWindow {
     private final JButton connectButton;
     private final JButton disconnectButton;
+    private final JButton clearButton;
     private final JButton exitButton;
     private final JProgressBar progressBar;
     private final JLabel statusLabel;
-    private Socket clientSocket;
-    private ServerSocket serverSocket;
+    private final JSpinner sessionsSpinner;
+    private final JSpinner bandwidthSpinner;
+    private final JCheckBox nioCheckBox;
+    private final JCheckBox mappedCheckBox;
+    private final SessionTableModel sessionModel;
+    private final Timer refreshTimer;
+    private volatile TransferServer server;
     private volatile boolean isListening = false;
 
     public Receive() {
@@ -26,6 +31,7 @@ public class Receive extends BaseWindow {
         // Initialize components
         connectButton = createButton("Connect");
         disconnectButton = createButton("Disconnect");
+        clearButton = createButton("Clear");
         exitButton = createButton("Exit");
         
         progressBar = new JProgressBar();
@@ -34,11 +40,24 @@ public class Receive extends BaseWindow {
         statusLabel = new JLabel("Status: Not Connected");
         statusLabel.setFont(AppConstants.DEFAULT_FONT);
 
+        sessionsSpinner = new JSpinner(new SpinnerNumberModel(AppConstants.DEFAULT_MAX_SESSIONS, 1, 64, 1));
+        bandwidthSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 10000, 1)); // MB/s, 0 = unlimited
+        nioCheckBox = new JCheckBox("NIO engine");
+        nioCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        mappedCheckBox = new JCheckBox("Mapped");
+        mappedCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        mappedCheckBox.setToolTipText("Receive very large files straight into mapped memory");
+        sessionModel = new SessionTableModel();
+
         setupUI();
         setupListeners();
         
         // Initial button states
         disconnectButton.setEnabled(false);
+
+        // Sessions are sampled for display instead of being pushed from the transfer threads
+        refreshTimer = new Timer(AppConstants.PROGRESS_REFRESH_MS, e -> refreshSessions());
+        refreshTimer.start();
         
         setVisible(true);
     }
@@ -54,16 +73,45 @@ public class Receive extends BaseWindow {
         // Connect Button
         connectButton.setBounds(180, 70, 150, 25);
         add(connectButton);
+        nioCheckBox.setBounds(340, 70, 140, 25);
+        add(nioCheckBox);
+        mappedCheckBox.setBounds(32, 70, 140, 25);
+        add(mappedCheckBox);
 
         // Status Label
-        statusLabel.setBounds(32, 120, 448, 25);
+        statusLabel.setBounds(32, 110, 448, 25);
         add(statusLabel);
 
+        // Limits
+        JLabel sessionsLabel = new JLabel("Max sessions:");
+        sessionsLabel.setFont(AppConstants.DEFAULT_FONT);
+        sessionsLabel.setBounds(32, 150, 130, 25);
+        add(sessionsLabel);
+        sessionsSpinner.setBounds(160, 150, 50, 25);
+        add(sessionsSpinner);
+
+        JLabel bandwidthLabel = new JLabel("Limit MB/s:");
+        bandwidthLabel.setFont(AppConstants.DEFAULT_FONT);
+        bandwidthLabel.setBounds(250, 150, 110, 25);
+        add(bandwidthLabel);
+        bandwidthSpinner.setBounds(360, 150, 60, 25);
+        add(bandwidthSpinner);
+
         // Progress Bar
-        progressBar.setBounds(32, 220, 448, 25);
+        progressBar.setBounds(32, 190, 448, 25);
         add(progressBar);
 
-        // Disconnect and Exit buttons
+        // Sessions Table
+        JTable sessionTable = new JTable(sessionModel);
+        sessionTable.setFillsViewportHeight(true);
+        JScrollPane scrollPane = new JScrollPane(sessionTable);
+        scrollPane.setBounds(32, 230, 448, 185);
+        add(scrollPane);
+
+        // Clear, Disconnect and Exit buttons
+        clearButton.setBounds(32, 430, 100, 25);
+        add(clearButton);
+
         disconnectButton.setBounds(220, 430, 150, 25);
         add(disconnectButton);
 
@@ -74,7 +122,19 @@ public class Receive extends BaseWindow {
     private void setupListeners() {
         connectButton.addActionListener(e -> startServer());
         disconnectButton.addActionListener(e -> disconnect());
+        clearButton.addActionListener(e -> clearSessions());
         exitButton.addActionListener(e -> exit());
+        // The NIO engine writes from its event loops, where a page fault would stall every connection
+        nioCheckBox.addActionListener(e -> mappedCheckBox.setEnabled(!nioCheckBox.isSelected()));
+        bandwidthSpinner.addChangeListener(e -> {
+            if (server != null) {
+                server.getBandwidth().setRate(getBandwidthLimit());
+            }
+        });
+    }
+
+    private long getBandwidthLimit() {
+        return (Integer) bandwidthSpinner.getValue() * 1024L * 1024L;
     }
     
     private boolean isPortAvailable(int port) {
@@ -92,44 +152,84 @@ public class Receive extends BaseWindow {
             return;
         }
 
-        if (!isPortAvailable(5000)) {
-            showError("Port 5000 is already in use. Please wait a moment and try again.");
+        if (!isPortAvailable(AppConstants.SERVER_PORT)) {
+            showError("Port " + AppConstants.SERVER_PORT + " is already in use. Please wait a moment and try again.");
             return;
         }
         progressBar.setValue(0);
         progressBar.setString("0%");
+        connectButton.setEnabled(false);
+        nioCheckBox.setEnabled(false);
+        mappedCheckBox.setEnabled(false);
         new ServerTask().execute();
     }
 
     private void disconnect() {
-    	try {
-            isListening = false;
-            if (clientSocket != null) {
-                clientSocket.close();
-                clientSocket = null;
-            }
-            if (serverSocket != null) {
-                serverSocket.close();
-                serverSocket = null;
-            }
-            resetUI();
-        } catch (IOException e) {
-            e.printStackTrace();
-            showError("Error during disconnection: " + e.getMessage());
+        isListening = false;
+        if (server != null) {
+            server.stop();
+            server = null;
+
+            // Remove firewall rules off the EDT
+            Thread.ofVirtual().start(() -> {
+                try {
+                    removeFirewallRules();
+                } catch (IOException | InterruptedException e) {
+                    e.printStackTrace();
+                }
+            });
         }
+        resetUI();
     }
 
     private void resetUI() {
         SwingUtilities.invokeLater(() -> {
             connectButton.setEnabled(true);
+            nioCheckBox.setEnabled(true);
+            mappedCheckBox.setEnabled(!nioCheckBox.isSelected());
             disconnectButton.setEnabled(false);
             statusLabel.setText("Status: Not Connected");
             isListening = false;
         });
     }
 
+    private void clearSessions() {
+        if (server != null) {
+            server.clearFinishedSessions();
+        }
+        refreshSessions();
+    }
+
+    private void refreshSessions() {
+        List<TransferSession> sessions = server != null ? server.getSessions() : new ArrayList<>();
+        sessionModel.setSessions(sessions);
+
+        long transferred = 0;
+        long total = 0;
+        long speed = 0;
+        int active = 0;
+        for (TransferSession session : sessions) {
+            if (session.getState() == TransferSession.State.TRANSFERRING) {
+                transferred += session.getTransferred();
+                total += session.getTotalBytes();
+                speed += session.getSpeed();
+                active++;
+            }
+        }
+        if (active > 0) {
+            int percentage = total > 0 ? (int) (transferred * 100 / total) : 100;
+            progressBar.setValue(percentage);
+            progressBar.setString(String.format("%d%% (%s/%s) - %s/s, %d active", percentage,
+                getReadableFileSize(transferred), getReadableFileSize(total), getReadableFileSize(speed), active));
+        }
+        if (isListening) {
+            statusLabel.setText("Status: Listening - " + active + " active, " + sessions.size() + " sessions");
+        }
+    }
+
     @Override
     public void dispose() {
+        refreshTimer.stop();
         disconnect();
         super.dispose();
     }
@@ -150,55 +250,30 @@ public class Receive extends BaseWindow {
         JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
     }
 
-    private void showMessage(String message) {
-        JOptionPane.showMessageDialog(this, message, "Message", JOptionPane.INFORMATION_MESSAGE);
-    }
-
     private class ServerTask extends SwingWorker<Void, String> {
         @Override
         protected Void doInBackground() throws Exception {
             try {
-            	if (serverSocket != null && !serverSocket.isClosed()) {
-                    serverSocket.close();
-            	}
-            	
                 // Add firewall rules
                 addFirewallRules();
 
-                // Create and configure new server socket
-                serverSocket = new ServerSocket();
-                serverSocket.setReuseAddress(true);
-                serverSocket.bind(new InetSocketAddress(5000));
-                
-                isListening = true;
-                publish("Status: Waiting for connection...");
-                connectButton.setEnabled(false);
-
-                clientSocket = serverSocket.accept();
-                clientSocket.setReceiveBufferSize(AppConstants.BUFFER_SIZE);
-                clientSocket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
-
-                publish("Status: Connected with " + clientSocket.getInetAddress().getHostAddress());
-                SwingUtilities.invokeLater(() -> showMessage("Connected succesfully with " + clientSocket.getInetAddress().getHostAddress()));
-                SwingUtilities.invokeLater(() -> {
-                    connectButton.setEnabled(false);
-                    disconnectButton.setEnabled(true);
-                });
+                // Start the long-running server, either a virtual thread per sender or the selector engine
+                server = TransferServer.create(TransferServer.defaultSaveDir(), (Integer) sessionsSpinner.getValue(),
+                        getBandwidthLimit(), nioCheckBox.isSelected(), mappedCheckBox.isSelected());
+                server.start(AppConstants.SERVER_PORT);
 
-                // Start receiving file
-                new FileReceiveTask(clientSocket).execute();
+                isListening = true;
+                publish("Status: Waiting for connections...");
+                SwingUtilities.invokeLater(() -> disconnectButton.setEnabled(true));
 
             } catch (Exception e) {
                 e.printStackTrace();
                 publish("Status: Connection failed");
                 SwingUtilities.invokeLater(() -> {
-                    resetUI();
+                    disconnect();
                     showError("Connection failed: " + e.getMessage());
                 });
                 throw e;
-            } finally {
-                // Remove firewall rules
-                removeFirewallRules();
             }
             return null;
         }
@@ -210,97 +285,47 @@ public class Receive extends BaseWindow {
         }
     }
 
-    private class FileReceiveTask extends SwingWorker<Void, Integer> {
-        private final Socket socket;
+    private class SessionTableModel extends AbstractTableModel {
+        private final String[] columnNames = {"From", "File", "Size", "Progress", "Speed", "Status"};
+        private List<TransferSession> sessions = new ArrayList<>();
 
-        public FileReceiveTask(Socket socket) {
-            this.socket = socket;
+        void setSessions(List<TransferSession> sessions) {
+            this.sessions = sessions;
+            fireTableDataChanged();
         }
 
         @Override
-        protected Void doInBackground() throws Exception {
-            try {
-                DataInputStream dataIn = new DataInputStream(
-                    new BufferedInputStream(socket.getInputStream(), AppConstants.BUFFER_SIZE));
-
-                // Wait for handshake
-                while (true) {
-                    if (dataIn.readUTF().equals(AppConstants.HANDSHAKE_MESSAGE))
-                        break;
-                }
-
-                // Receive file info
-                long fileSize = dataIn.readLong();
-                String fileName = dataIn.readUTF();
-
-                String saveDir = System.getProperty("user.home") + "/Downloads";
-                File saveFile = new File(saveDir, fileName);
-
-                try (FileOutputStream fos = new FileOutputStream(saveFile);
-                     BufferedOutputStream bos = new BufferedOutputStream(fos, AppConstants.BUFFER_SIZE)) {
-
-                    byte[] buffer = new byte[AppConstants.BUFFER_SIZE];
-                    int bytesRead;
-                    long totalBytesRead = 0;
-                    long startTime = System.currentTimeMillis();
-
-                    while (totalBytesRead < fileSize && (bytesRead = dataIn.read(buffer)) != -1) {
-                        bos.write(buffer, 0, bytesRead);
-                        totalBytesRead += bytesRead;
-
-                        if (totalBytesRead % (1024 * 1024) == 0) { // Every 1MB
-                            bos.flush();
-                        }
-
-                        updateProgress(totalBytesRead, fileSize, startTime);
-                    }
-
-                    bos.flush();
-
-                    // Verify file size
-                    if (totalBytesRead != fileSize) {
-                        throw new IOException("Incomplete file transfer");
-                    }
-
-                    // Log the transfer
-                    String[] data = {
-                        LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-                        "Receive",
-                        socket.getInetAddress().getHostAddress(),
-                        fileName,
-                        getReadableFileSize(fileSize)
-                    };
-                    addLog(data);
-                }
-
-                SwingUtilities.invokeLater(() -> showMessage("File received successfully!"));
+        public int getRowCount() {
+            return sessions.size();
+        }
 
-            } catch (Exception e) {
-                e.printStackTrace();
-                SwingUtilities.invokeLater(() -> showError("File transfer failed: " + e.getMessage()));
-            } finally {
-                disconnect();
-            }
-            return null;
+        @Override
+        public int getColumnCount() {
+            return columnNames.length;
         }
 
-        private void updateProgress(long current,  long total, long startTime) {
-            int percentage = (int) (current * 100 / total);
-            double speed = current * 1000.0 / (System.currentTimeMillis() - startTime);
-            publish(percentage);
-            SwingUtilities.invokeLater(() -> {
-                progressBar.setString(String.format("%d%% (%s/%s) - %s/s",
-                    percentage,
-                    getReadableFileSize(current),
-                    getReadableFileSize(total),
-                    getReadableFileSize((long) speed)));
-            });
+        @Override
+        public String getColumnName(int column) {
+            return columnNames[column];
         }
 
         @Override
-        protected void process(java.util.List<Integer> chunks) {
-            int progress = chunks.get(chunks.size() - 1);
-            progressBar.setValue(progress);
+        public Object getValueAt(int row, int column) {
+            TransferSession session = sessions.get(row);
+            switch (column) {
+                case 0: return session.getPeer();
+                case 1: return session.getName();
+                case 2: return getReadableFileSize(session.getTotalBytes());
+                case 3: return session.getPercentage() + "%";
+                case 4: return getReadableFileSize(session.getSpeed()) + "/s";
+                default:
+                    switch (session.getState()) {
+                        case WAITING: return "Waiting";
+                        case TRANSFERRING: return "Receiving";
+                        case COMPLETED: return "Done";
+                        default: return "Failed: " + session.getMessage();
+                    }
+            }
         }
     }
 
@@ -336,24 +361,6 @@ public class Receive extends BaseWindow {
         deleteOutbound.waitFor();
     }
 
-    public static void addLog(String[] data) {
-        try {
-            String folderPath = "C:\\Users\\" + System.getProperty("user.name") + "\\OneDrive\\Documents\\LetsShare";
-            File folder = new File(folderPath);
-            if (!folder.exists()) {
-                folder.mkdirs();
-            }
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(folderPath + "\\logs.txt", true))) {
-                for (String d : data) {
-                    writer.append(d).append("  ");
-                }
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
     private String getReadableFileSize(long bytes) {
         if (bytes <= 0) return "0 B";
         final String[] units = {"B", "KB", "MB", "GB", "TB"};
@@ -0,0 +1,239 @@
+package tester;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running receiver. Accepts connections in a loop and serves each one on its own virtual
+ * thread, with a cap on concurrent sessions and on the aggregate receive bandwidth. Extra
+ * connections of a multi-stream transfer are routed to the session that owns the transfer id.
+ */
+public class ReceiveServer implements TransferServer {
+    private final File saveDir;
+    private final Semaphore sessionSlots;
+    private final RateLimiter bandwidth;
+    private final boolean mapped;
+    private final List<TransferSession> sessions = new CopyOnWriteArrayList<>();
+    private final Map<Long, BlockingQueue<ParallelTransfer.Stream>> pendingStreams = new ConcurrentHashMap<>();
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean running;
+
+    public ReceiveServer(File saveDir, int maxSessions, long maxBytesPerSecond) {
+        this(saveDir, maxSessions, maxBytesPerSecond, false);
+    }
+
+    // With mapped, large plain bodies are received into memory-mapped windows of the file
+    public ReceiveServer(File saveDir, int maxSessions, long maxBytesPerSecond, boolean mapped) {
+        this.saveDir = saveDir;
+        this.sessionSlots = new Semaphore(maxSessions, true);
+        this.bandwidth = new RateLimiter(maxBytesPerSecond);
+        this.mapped = mapped;
+    }
+
+    @Override
+    public void start(int port) throws IOException {
+        serverSocket = ServerSocketChannel.open().socket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        running = true;
+        Thread.ofPlatform().name("letsshare-accept").daemon().start(this::acceptLoop);
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Socket socket : openSockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    @Override
+    public RateLimiter getBandwidth() {
+        return bandwidth;
+    }
+
+    @Override
+    public List<TransferSession> getSessions() {
+        return new ArrayList<>(sessions);
+    }
+
+    @Override
+    public List<TransferSession> clearFinishedSessions() {
+        List<TransferSession> finished = new ArrayList<>();
+        sessions.removeIf(session -> !session.isActive() && finished.add(session));
+        return finished;
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                TransferEngine.configureReceiveBuffer(socket);
+                socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+                openSockets.removeIf(Socket::isClosed);
+                openSockets.add(socket);
+                Thread.ofVirtual().name("letsshare-session").start(() -> handle(socket));
+            } catch (IOException e) {
+                if (running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        boolean handedOff = false;
+        try {
+            TransferEngine.HeaderInputStream headerIn = new TransferEngine.HeaderInputStream(
+                    socket.getInputStream(), AppConstants.BUFFER_SIZE);
+            DataInputStream dataIn = new DataInputStream(headerIn);
+            String peer = socket.getInetAddress().getHostAddress();
+
+            byte kind = TransferHeader.readKind(dataIn);
+            if (kind == TransferHeader.KIND_BATCH) {
+                BatchTransfer.Manifest manifest = BatchTransfer.readManifest(dataIn);
+                TransferSession session = new TransferSession(peer, manifest.getLabel(), manifest.getTotalBytes());
+                runSession(session, listener ->
+                        BatchTransfer.receive(manifest, socket, headerIn, saveDir, listener));
+            } else if (kind == TransferHeader.KIND_DELTA) {
+                DeltaTransfer.Request request = DeltaTransfer.readRequest(dataIn);
+                TransferSession session = new TransferSession(peer, new File(request.getFileName()).getName(),
+                        request.getFileSize());
+                runSession(session, listener ->
+                        DeltaTransfer.receive(request, socket, headerIn, saveDir, listener));
+            } else if (kind == TransferHeader.KIND_DEDUP) {
+                DedupTransfer.Request request = DedupTransfer.readRequest(dataIn);
+                TransferSession session = new TransferSession(peer, new File(request.getFileName()).getName(),
+                        request.getFileSize());
+                runSession(session, listener ->
+                        DedupTransfer.receive(request, socket, headerIn, saveDir, listener));
+            } else if (kind == TransferHeader.KIND_FILE) {
+                TransferHeader header = TransferHeader.readFile(dataIn);
+                ParallelTransfer.Stream stream = new ParallelTransfer.Stream(socket, headerIn, header);
+                if (header.getStreams() > 1) {
+                    BlockingQueue<ParallelTransfer.Stream> queue = new LinkedBlockingQueue<>();
+                    BlockingQueue<ParallelTransfer.Stream> owner = pendingStreams.putIfAbsent(header.getTransferId(), queue);
+                    if (owner != null) {
+                        // Another connection already owns this transfer and will close this socket
+                        owner.add(stream);
+                        handedOff = true;
+                        return;
+                    }
+                }
+                receiveFile(stream, peer);
+            } else {
+                throw new IOException("Unknown transfer kind");
+            }
+        } catch (Exception e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        } finally {
+            if (!handedOff) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void receiveFile(ParallelTransfer.Stream first, String peer) throws Exception {
+        TransferHeader header = first.getHeader();
+        // Only the last path element, so a crafted name cannot escape the save folder
+        String fileName = new File(header.getFileName()).getName();
+        File saveFile = new File(saveDir, fileName);
+        TransferSession session = new TransferSession(peer, fileName, header.getFileSize());
+        BlockingQueue<ParallelTransfer.Stream> queue = pendingStreams.get(header.getTransferId());
+        try {
+            runSession(session, listener -> {
+                long totalBytesRead = ParallelTransfer.receive(first, saveFile, () -> nextStream(queue), mapped, listener);
+
+                // Verify file size
+                if (totalBytesRead != header.getFileSize()) {
+                    throw new IOException("Incomplete file transfer");
+                }
+                return totalBytesRead;
+            });
+        } finally {
+            if (queue != null) {
+                pendingStreams.remove(header.getTransferId());
+                for (ParallelTransfer.Stream late : queue) {
+                    closeQuietly(late.getSocket());
+                }
+            }
+        }
+    }
+
+    private ParallelTransfer.Stream nextStream(BlockingQueue<ParallelTransfer.Stream> queue) throws IOException {
+        try {
+            ParallelTransfer.Stream stream = queue.poll(AppConstants.CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (stream == null) {
+                throw new SocketTimeoutException("Timed out waiting for transfer streams");
+            }
+            return stream;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for transfer streams");
+        }
+    }
+
+    private interface SessionBody {
+        long run(TransferEngine.ProgressListener listener) throws Exception;
+    }
+
+    // Waits for a free session slot, then runs the transfer under the shared bandwidth limit
+    private void runSession(TransferSession session, SessionBody body) throws Exception {
+        sessions.add(session);
+        try {
+            sessionSlots.acquire();
+        } catch (InterruptedException e) {
+            session.finish(TransferSession.State.FAILED, "Interrupted");
+            throw e;
+        }
+        try {
+            session.start();
+            body.run(TransferEngine.throttled(session, bandwidth));
+            session.finish(TransferSession.State.COMPLETED, "Received");
+
+            // Log the transfer
+            HistoryWriter.shared().log(HistoryStore.RECEIVE, session);
+        } catch (Exception e) {
+            session.finish(TransferSession.State.FAILED, e.getMessage() != null ? e.getMessage() : e.toString());
+            throw e;
+        } finally {
+            sessionSlots.release();
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        openSockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
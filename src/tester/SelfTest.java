@@ -0,0 +1,376 @@
+package tester;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Diagnostic for slow transfers: measures disk write, disk read, a raw socket and a full
+ * transfer one after the other, so the report shows whether the disk, the network or the
+ * transfer itself holds things back. Every stage goes through the code real transfers use:
+ * positional FileChannel writes and a Pipeline read for the disk, the tuned send buffer for
+ * the socket, and Sender against a TransferServer for the full run. Over loopback the
+ * receiver runs in this process; against a peer, the peer runs the serve side (a receive
+ * server plus a discard listener on the next port) through the selftest --serve command.
+ */
+public class SelfTest {
+    private static final long SEED = 0x4C534853L;
+    private static final String SYNTHETIC_NAME = "letsshare-selftest.bin";
+
+    private final String host;
+    private final int port;
+    private final File folder;
+    private File file;
+    private long size = AppConstants.SELFTEST_SIZE;
+    private int streams = AppConstants.DEFAULT_STREAMS;
+    private boolean nio;
+    private boolean verify;
+
+    // One measured stage; bytes over nanos gives its throughput
+    public static class Stage {
+        private final String name;
+        private final long bytes;
+        private final long nanos;
+
+        Stage(String name, long bytes, long nanos) {
+            this.name = name;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getThroughput() {
+            return (long) (bytes * 1e9 / Math.max(1, nanos));
+        }
+    }
+
+    /**
+     * What a run measured. The time split covers the full transfer only and adds up the disk,
+     * network and hashing time of every thread taking part, so it shows which one dominated
+     * rather than wall-clock shares.
+     */
+    public static class Report {
+        private final List<Stage> stages = new ArrayList<>();
+        private Stage endToEnd;
+        private long connectNanos;
+        private double diskSeconds;
+        private double networkSeconds;
+        private double hashSeconds;
+
+        public List<Stage> getStages() {
+            return stages;
+        }
+
+        public Stage getEndToEnd() {
+            return endToEnd;
+        }
+
+        public long getConnectNanos() {
+            return connectNanos;
+        }
+
+        public List<String> describe() {
+            List<String> lines = new ArrayList<>();
+            for (Stage stage : stages) {
+                lines.add(String.format("%-12s %s/s", stage.getName(), getReadableFileSize(stage.getThroughput())));
+            }
+            lines.add(String.format("%-12s %.2f ms", "Connect", connectNanos / 1e6));
+            lines.add(String.format("%-12s %s/s", endToEnd.getName(), getReadableFileSize(endToEnd.getThroughput())));
+
+            double total = diskSeconds + networkSeconds + hashSeconds;
+            if (total > 0) {
+                lines.add(String.format("Time in the transfer: disk %.0f%%, network %.0f%%, hashing %.0f%%",
+                        diskSeconds * 100 / total, networkSeconds * 100 / total, hashSeconds * 100 / total));
+            } else {
+                lines.add("Time in the transfer: not measured by this engine");
+            }
+            Stage slowest = stages.stream().min(Comparator.comparingLong(Stage::getThroughput)).orElseThrow();
+            lines.add(String.format("Slowest stage: %s; the transfer reached %.0f%% of it", slowest.getName(),
+                    endToEnd.getThroughput() * 100.0 / Math.max(1, slowest.getThroughput())));
+            return lines;
+        }
+    }
+
+    private SelfTest(String host, int port, File folder) {
+        this.host = host;
+        this.port = port;
+        this.folder = folder;
+    }
+
+    // Runs everything on this machine; the disk stages use a scratch folder inside folder
+    public static SelfTest loopback(File folder) {
+        return new SelfTest(null, 0, folder);
+    }
+
+    // Sends to a peer running selftest --serve on port
+    public static SelfTest peer(String host, int port, File folder) {
+        return new SelfTest(host, port, folder);
+    }
+
+    // A real file to read and send instead of synthetic data; size then only sets the disk write
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    public void setStreams(int streams) {
+        this.streams = streams;
+    }
+
+    public void setNio(boolean nio) {
+        this.nio = nio;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public boolean isLoopback() {
+        return host == null;
+    }
+
+    /**
+     * Runs the stages in order and removes the scratch folder afterwards. The synthetic data
+     * written by the disk write stage is what the later stages read and send, so without a
+     * real file the disk read mostly measures the page cache.
+     */
+    public Report run() throws Exception {
+        // Registers the metrics MBean now, not inside the first stage that records I/O time
+        Metrics.shared();
+        Path scratch = Files.createTempDirectory(folder.toPath(), "letsshare-selftest");
+        TransferServer server = null;
+        ServerSocket discard = null;
+        try {
+            Report report = new Report();
+            File written = scratch.resolve(SYNTHETIC_NAME).toFile();
+            report.stages.add(diskWrite(written));
+            File source = file != null ? file : written;
+            report.stages.add(diskRead(source));
+
+            InetSocketAddress discardAddress;
+            int transferPort = port;
+            if (isLoopback()) {
+                discard = startDiscard(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                discardAddress = (InetSocketAddress) discard.getLocalSocketAddress();
+                transferPort = freePort();
+                File received = scratch.resolve("received").toFile();
+                if (!received.mkdir()) {
+                    throw new IOException("Cannot create " + received);
+                }
+                server = TransferServer.create(received, 1, 0, nio, false);
+                server.start(transferPort);
+            } else {
+                discardAddress = new InetSocketAddress(host, port + 1);
+            }
+            report.stages.add(rawSocket(discardAddress, source.length(), report));
+            report.endToEnd = transfer(isLoopback() ? InetAddress.getLoopbackAddress().getHostAddress() : host,
+                    transferPort, source, report);
+            if (server != null) {
+                awaitIdle(server);
+            }
+            return report;
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+            if (discard != null) {
+                discard.close();
+            }
+            deleteTree(scratch);
+        }
+    }
+
+    /**
+     * Synthetic data from memory into a new file with the positional writes the receivers use,
+     * forced to the device as a receiver's would be at the end. Timed here rather than through
+     * a Pipeline, whose fill side would count the memory copies as network time in Metrics.
+     */
+    private Stage diskWrite(File target) throws IOException {
+        ByteBuffer block = syntheticBlock();
+        long written = 0;
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            while (written < size) {
+                ByteBuffer chunk = block.duplicate().limit((int) Math.min(block.capacity(), size - written));
+                while (chunk.hasRemaining()) {
+                    written += channel.write(chunk, written);
+                }
+            }
+            channel.force(false);
+        }
+        return new Stage("Disk write", size, System.nanoTime() - start);
+    }
+
+    // The file read ahead through a Pipeline as the stream senders do, the buffers dropped
+    private Stage diskRead(File source) throws IOException {
+        long count = source.length();
+        long[] read = new long[1];
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            Pipeline.run(count, AppConstants.PIPELINE_BUFFER_SIZE, true, Metrics.Io.DISK, buffer -> {
+                if (read[0] == count) {
+                    return -1;
+                }
+                buffer.limit((int) Math.min(buffer.capacity(), count - read[0]));
+                int bytesRead = channel.read(buffer, read[0]);
+                if (bytesRead < 0) {
+                    throw new EOFException("File was truncated during the test");
+                }
+                read[0] += bytesRead;
+                return bytesRead;
+            }, buffer -> {
+            });
+        }
+        return new Stage("Disk read", count, System.nanoTime() - start);
+    }
+
+    // Synthetic data from memory into the socket until the discard side has read it all
+    private Stage rawSocket(InetSocketAddress address, long count, Report report) throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            Socket socket = channel.socket();
+            long connectStart = System.nanoTime();
+            socket.connect(address, AppConstants.CONNECTION_TIMEOUT);
+            report.connectNanos = System.nanoTime() - connectStart;
+            TransferEngine.configureSendBuffer(socket);
+            socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+
+            ByteBuffer block = syntheticBlock();
+            long start = System.nanoTime();
+            long sent = 0;
+            while (sent < count) {
+                ByteBuffer chunk = block.duplicate().limit((int) Math.min(block.capacity(), count - sent));
+                while (chunk.hasRemaining()) {
+                    sent += channel.write(chunk);
+                }
+            }
+            socket.shutdownOutput();
+            // The discard side closes once it has everything, so the time covers delivery
+            if (socket.getInputStream().read() != -1) {
+                throw new IOException("Unexpected reply from the discard listener");
+            }
+            return new Stage("Raw socket", count, System.nanoTime() - start);
+        }
+    }
+
+    // A normal send, unthrottled; the disk, network and hashing time it adds to Metrics gives the split
+    private Stage transfer(String target, int targetPort, File source, Report report) throws Exception {
+        Metrics metrics = Metrics.shared();
+        double disk = metrics.getDiskSeconds();
+        double network = metrics.getNetworkSeconds();
+        double hash = metrics.getHashSeconds();
+
+        Sender sender = Sender.connect(target, targetPort, new RateLimiter(0));
+        sender.setStreams(streams);
+        sender.setNio(nio);
+        sender.setVerify(verify);
+        long start = System.nanoTime();
+        TransferSession session = sender.send(List.of(source));
+        Stage stage = new Stage("Transfer", session.getTotalBytes(), System.nanoTime() - start);
+
+        report.diskSeconds = metrics.getDiskSeconds() - disk;
+        report.networkSeconds = metrics.getNetworkSeconds() - network;
+        report.hashSeconds = metrics.getHashSeconds() - hash;
+        return stage;
+    }
+
+    // The receiver finishes its session just after the sender returns; the scratch folder must outlive it
+    private static void awaitIdle(TransferServer server) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + AppConstants.SOCKET_TIMEOUT;
+        while (server.getSessions().stream().anyMatch(TransferSession::isActive)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Accepts connections on address and reads each one to the end before closing it, for the
+     * raw socket stage. Runs until the returned socket is closed.
+     */
+    public static ServerSocket startDiscard(InetSocketAddress address) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(address);
+        Thread.ofPlatform().name("letsshare-selftest-discard").daemon().start(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread.ofVirtual().start(() -> drain(socket));
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        });
+        return server;
+    }
+
+    private static void drain(Socket socket) {
+        try (socket; InputStream in = socket.getInputStream()) {
+            TransferEngine.configureReceiveBuffer(socket);
+            socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+            byte[] buffer = new byte[AppConstants.PIPELINE_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // Discarded
+            }
+        } catch (IOException e) {
+            // The sender reports the failure
+        }
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    // Random rather than repeating bytes, so compression and dedup cannot flatter the numbers
+    private static ByteBuffer syntheticBlock() {
+        byte[] block = new byte[AppConstants.PIPELINE_BUFFER_SIZE];
+        new Random(SEED).nextBytes(block);
+        return ByteBuffer.allocateDirect(block.length).put(block).flip();
+    }
+
+    private static String getReadableFileSize(long bytes) {
+        if (bytes <= 0) return "0 B";
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int digitGroups = (int) (Math.log10(bytes) / Math.log10(1024));
+        return String.format("%.2f %s", bytes / Math.pow(1024, digitGroups), units[digitGroups]);
+    }
+}
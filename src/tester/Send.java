@@ -2,13 +2,10 @@ package tester;
 
 import javax.swing.*;
 import java.io.*;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
 
 public class Send extends BaseWindow {
-    private static final int TIMEOUT_MS = AppConstants.SOCKET_TIMEOUT;
     private final JButton connectButton;
     private final JButton browseButton;
     private final JButton exitButton;
@@ -17,8 +14,19 @@ public class Send extends BaseWindow {
     private final JTextField ipField;
     private final JTextField fileField;
     private final JProgressBar progressBar;
-    private File selectedFile;
-    private Socket socket;
+    private final JSpinner streamsSpinner;
+    private final JCheckBox nioCheckBox;
+    private final JCheckBox compressCheckBox;
+    private final JCheckBox verifyCheckBox;
+    private final JCheckBox deltaCheckBox;
+    private final JCheckBox dedupCheckBox;
+    private final JCheckBox mappedCheckBox;
+    private final JSpinner limitSpinner;
+    private final JSpinner totalLimitSpinner;
+    // Caps this window's transfers, under the cap shared by every send
+    private final RateLimiter limit = new RateLimiter(0, RateLimiter.SEND);
+    private List<File> selectedFiles;
+    private Sender sender;
     private volatile boolean isTransferring = false;
 
     public Send() {
@@ -56,8 +64,69 @@ public class Send extends BaseWindow {
         browseButton.setFont(AppConstants.DEFAULT_FONT);
         add(browseButton);
 
+        JLabel streamsLabel = new JLabel("Streams:");
+        streamsLabel.setBounds(20, 110, 150, 25);
+        streamsLabel.setFont(AppConstants.DEFAULT_FONT);
+        add(streamsLabel);
+
+        streamsSpinner = new JSpinner(new SpinnerNumberModel(AppConstants.DEFAULT_STREAMS, 1, AppConstants.MAX_STREAMS, 1));
+        streamsSpinner.setBounds(180, 110, 60, 25);
+        add(streamsSpinner);
+
+        nioCheckBox = new JCheckBox("NIO engine");
+        nioCheckBox.setBounds(250, 110, 130, 25);
+        nioCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        add(nioCheckBox);
+
+        compressCheckBox = new JCheckBox("Compress");
+        compressCheckBox.setBounds(20, 150, 150, 25);
+        compressCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        add(compressCheckBox);
+
+        verifyCheckBox = new JCheckBox("Verify");
+        verifyCheckBox.setBounds(180, 150, 150, 25);
+        verifyCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        add(verifyCheckBox);
+
+        deltaCheckBox = new JCheckBox("Delta");
+        deltaCheckBox.setBounds(330, 150, 150, 25);
+        deltaCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        add(deltaCheckBox);
+
+        dedupCheckBox = new JCheckBox("Dedup");
+        dedupCheckBox.setBounds(20, 185, 150, 25);
+        dedupCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        add(dedupCheckBox);
+
+        JLabel limitLabel = new JLabel("Limit MB/s:");
+        limitLabel.setBounds(180, 185, 110, 25);
+        limitLabel.setFont(AppConstants.DEFAULT_FONT);
+        add(limitLabel);
+
+        limitSpinner = new JSpinner(new SpinnerNumberModel(0, 0, 10000, 1)); // MB/s, 0 = unlimited
+        limitSpinner.setBounds(290, 185, 60, 25);
+        limitSpinner.setToolTipText("Limit for this transfer");
+        add(limitSpinner);
+
+        JLabel totalLimitLabel = new JLabel("All:");
+        totalLimitLabel.setBounds(360, 185, 40, 25);
+        totalLimitLabel.setFont(AppConstants.DEFAULT_FONT);
+        add(totalLimitLabel);
+
+        totalLimitSpinner = new JSpinner(new SpinnerNumberModel(
+                (int) (RateLimiter.SEND.getRate() / (1024 * 1024)), 0, 10000, 1));
+        totalLimitSpinner.setBounds(400, 185, 60, 25);
+        totalLimitSpinner.setToolTipText("Limit shared by all transfers");
+        add(totalLimitSpinner);
+
+        mappedCheckBox = new JCheckBox("Memory-mapped");
+        mappedCheckBox.setBounds(20, 220, 200, 25);
+        mappedCheckBox.setFont(AppConstants.DEFAULT_FONT);
+        mappedCheckBox.setToolTipText("Send very large files straight from mapped memory");
+        add(mappedCheckBox);
+
         progressBar = new JProgressBar();
-        progressBar.setBounds(32, 220, 448, 25);
+        progressBar.setBounds(32, 260, 448, 25);
         progressBar.setStringPainted(true);
         add(progressBar);
 
@@ -87,6 +156,24 @@ public class Send extends BaseWindow {
         sendButton.addActionListener(e -> startFileTransfer());
         disconnectButton.addActionListener(e -> disconnect());
         exitButton.addActionListener(e -> exit());
+        // Both limits apply to transfers already running
+        limitSpinner.addChangeListener(e -> limit.setRate(toBytesPerSecond(limitSpinner)));
+        totalLimitSpinner.addChangeListener(e -> RateLimiter.SEND.setRate(toBytesPerSecond(totalLimitSpinner)));
+        // Delta and dedup are two ways of skipping content, only one applies per send
+        deltaCheckBox.addActionListener(e -> {
+            if (deltaCheckBox.isSelected()) {
+                dedupCheckBox.setSelected(false);
+            }
+        });
+        dedupCheckBox.addActionListener(e -> {
+            if (dedupCheckBox.isSelected()) {
+                deltaCheckBox.setSelected(false);
+            }
+        });
+        // The NIO engine sends bodies with transferTo and mapped bodies go out as they are in
+        // memory, so neither has a compression or hashing stage
+        nioCheckBox.addActionListener(e -> updateBodyOptions());
+        mappedCheckBox.addActionListener(e -> updateBodyOptions());
 
         setVisible(true);
     }
@@ -103,18 +190,14 @@ public class Send extends BaseWindow {
         }
 
         try {
-            socket = new Socket();
-            socket.setReuseAddress(true);
-            socket.connect(new InetSocketAddress(ipAddress, 5000), TIMEOUT_MS);
-            socket.setSendBufferSize(AppConstants.BUFFER_SIZE);
-            socket.setSoTimeout(TIMEOUT_MS);
+            sender = Sender.connect(ipAddress, AppConstants.SERVER_PORT, limit);
 
             connectButton.setEnabled(false);
             browseButton.setEnabled(true);
             fileField.setEditable(true);
             disconnectButton.setEnabled(true);
             ipField.setEditable(false);
-            SwingUtilities.invokeLater(() -> showMessage("Connected succesfully with " + socket.getInetAddress().getHostAddress()));
+            SwingUtilities.invokeLater(() -> showMessage("Connected succesfully with " + sender.getPeer()));
             progressBar.setValue(0);
             progressBar.setString("0%");
         } catch (IOException e) {
@@ -123,6 +206,17 @@ public class Send extends BaseWindow {
         }
     }
 
+    private void updateBodyOptions() {
+        boolean plain = nioCheckBox.isSelected() || mappedCheckBox.isSelected();
+        compressCheckBox.setEnabled(!plain);
+        verifyCheckBox.setEnabled(!plain);
+        mappedCheckBox.setEnabled(!nioCheckBox.isSelected());
+    }
+
+    private long toBytesPerSecond(JSpinner spinner) {
+        return (Integer) spinner.getValue() * 1024L * 1024L;
+    }
+
     private boolean isValidIpAddress(String ip) {
         String[] parts = ip.split("\\.");
         if (parts.length != 4) return false;
@@ -140,29 +234,33 @@ public class Send extends BaseWindow {
 
     private void handleFileSelection() {
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        fileChooser.setMultiSelectionEnabled(true);
         int result = fileChooser.showOpenDialog(this);
-        if (result == JFileChooser.APPROVE_OPTION) {
-            selectedFile = fileChooser.getSelectedFile();
-            fileField.setText(selectedFile.getAbsolutePath());
+        if (result == JFileChooser.APPROVE_OPTION && fileChooser.getSelectedFiles().length > 0) {
+            selectedFiles = Arrays.asList(fileChooser.getSelectedFiles());
+            fileField.setText(selectedFiles.size() == 1
+                    ? selectedFiles.get(0).getAbsolutePath()
+                    : selectedFiles.size() + " items selected");
             sendButton.setEnabled(true);
         }
     }
 
     private void startFileTransfer() {
-        if (!isTransferring && selectedFile != null) {
+        if (!isTransferring && selectedFiles != null) {
             isTransferring = true;
             sendButton.setEnabled(false);
             browseButton.setEnabled(false);
             fileField.setEditable(false);
-            new FileTransferTask().execute();
+            new FileTransferTask(sender).start();
         }
     }
 
     private void disconnect() {
         try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-                socket=null;
+            if (sender != null) {
+                sender.close();
+                sender = null;
             }
             resetUI();
         } catch (IOException e) {
@@ -178,7 +276,7 @@ public class Send extends BaseWindow {
         disconnectButton.setEnabled(false);
         ipField.setEditable(true);
         fileField.setText("");
-        selectedFile = null;
+        selectedFiles = null;
         isTransferring = false;
     }
 
@@ -196,53 +294,37 @@ public class Send extends BaseWindow {
         JOptionPane.showMessageDialog(this, message, "Message", JOptionPane.INFORMATION_MESSAGE);
     }
 
-    private class FileTransferTask extends SwingWorker<Void, Integer> {
+    /**
+     * Runs the Sender off the EDT. The transfer loops only record the bytes sent so far in the
+     * sender's session; a Swing timer samples it at PROGRESS_REFRESH_MS and repaints the progress
+     * bar, so the EDT sees a fixed number of updates however fast the transfer runs.
+     */
+    private class FileTransferTask extends SwingWorker<Void, Void> {
+        private final Sender sender;
+        private final List<File> files = selectedFiles;
+        private final Timer refreshTimer = new Timer(AppConstants.PROGRESS_REFRESH_MS, e -> refreshProgress());
+
+        FileTransferTask(Sender sender) {
+            this.sender = sender;
+        }
+
+        void start() {
+            sender.setStreams((Integer) streamsSpinner.getValue());
+            sender.setCompress(compressCheckBox.isSelected());
+            sender.setVerify(verifyCheckBox.isSelected());
+            sender.setDelta(deltaCheckBox.isSelected());
+            sender.setDedup(dedupCheckBox.isSelected());
+            sender.setNio(nioCheckBox.isSelected());
+            sender.setMapped(mappedCheckBox.isSelected());
+            refreshTimer.start();
+            execute();
+        }
+
         @Override
         protected Void doInBackground() throws Exception {
-            try (FileInputStream fis = new FileInputStream(selectedFile);
-                 BufferedInputStream bis = new BufferedInputStream(fis, AppConstants.BUFFER_SIZE);
-                 OutputStream out = socket.getOutputStream();
-                 DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out, AppConstants.BUFFER_SIZE))) {
-            	
-                // Send handshake and file info
-                dataOut.writeUTF(AppConstants.HANDSHAKE_MESSAGE);
-                dataOut.writeLong(selectedFile.length());
-                dataOut.writeUTF(selectedFile.getName());
-                dataOut.flush();
-
-                byte[] buffer = new byte[AppConstants.BUFFER_SIZE];
-                int bytesRead;
-                long totalBytesSent = 0;
-                long fileSize = selectedFile.length();
-                long startTime = System.currentTimeMillis();
-
-                while ((bytesRead = bis.read(buffer)) != -1 && !isCancelled()) {
-                    dataOut.write(buffer, 0, bytesRead);
-                    totalBytesSent += bytesRead;
-
-                    // Flush periodically
-                    if (totalBytesSent % (1024 * 1024) == 0) { // Every 1MB
-                        dataOut.flush();
-                        Thread.sleep(1); // Small delay to prevent overwhelming
-                    }
-
-                    updateProgress(totalBytesSent, fileSize, startTime);
-                }
-
-                // Final flush
-                dataOut.flush();
-
-                // Log the transfer
-                String[] data = {
-                    LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-                    "Send",
-                    socket.getInetAddress().getHostAddress(),
-                    selectedFile.getName(),
-                    getReadableFileSize(fileSize)
-                };
-                addLog(data);
+            try {
+                sender.send(files);
                 SwingUtilities.invokeLater(() -> showMessage("File sent successfully!"));
-
             } catch (Exception e) {
                 e.printStackTrace();
                 SwingUtilities.invokeLater(() -> showError("File transfer failed: " + e.getMessage()));
@@ -256,41 +338,26 @@ public class Send extends BaseWindow {
             return null;
         }
 
-        private void updateProgress(long current,  long total, long startTime) {
-            int percentage = (int) (current * 100 / total);
-            double speed = current * 1000.0 / (System.currentTimeMillis() - startTime);
-            publish(percentage);
-            SwingUtilities.invokeLater(() -> {
-                progressBar.setString(String.format("%d%% (%s/%s) - %s/s",
-                    percentage,
-                    getReadableFileSize(current),
-                    getReadableFileSize(total),
-                    getReadableFileSize((long) speed)));
-            });
+        private void refreshProgress() {
+            TransferSession session = sender.getSession();
+            if (session == null) {
+                return;
+            }
+            long current = session.getTransferred();
+            long total = session.getTotalBytes();
+            int percentage = total > 0 ? (int) (current * 100 / total) : 100;
+            progressBar.setValue(percentage);
+            progressBar.setString(String.format("%d%% (%s/%s) - %s/s",
+                percentage,
+                getReadableFileSize(current),
+                getReadableFileSize(total),
+                getReadableFileSize(session.getSpeed())));
         }
 
         @Override
-        protected void process(java.util.List<Integer> chunks) {
-            int progress = chunks.get(chunks.size() - 1);
-            progressBar.setValue(progress);
-        }
-    }
-
-    public static void addLog(String[] data) {
-        try {
-            String folderPath = "C:\\Users\\" + System.getProperty("user.name") + "\\OneDrive\\Documents\\LetsShare";
-            File folder = new File(folderPath);
-            if (!folder.exists()) {
-                folder.mkdirs();
-            }
-            try (BufferedWriter writer = new BufferedWriter(new FileWriter(folderPath + "\\logs.txt", true))) {
-                for (String d : data) {
-                    writer.append(d).append("  ");
-                }
-                writer.newLine();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        protected void done() {
+            refreshTimer.stop();
+            refreshProgress();
         }
     }
 
@@ -0,0 +1,156 @@
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * The sending side of one connection, without any UI: picks the protocol for the selection
+ * and the options, runs it on the calling thread and logs the result. Progress goes into the
+ * TransferSession from getSession(), which the Send window and the command line sample on
+ * their own schedule. The connection is closed when the send ends, as the receiver expects.
+ */
+public class Sender implements AutoCloseable {
+    private final Socket socket;
+    private final RateLimiter limit;
+    private int streams = AppConstants.DEFAULT_STREAMS;
+    private boolean compress;
+    private boolean verify;
+    private boolean delta;
+    private boolean dedup;
+    private boolean nio;
+    private boolean mapped;
+    private volatile TransferSession session;
+
+    private Sender(Socket socket, RateLimiter limit) {
+        this.socket = socket;
+        this.limit = limit;
+    }
+
+    // Sends through limit, which may have a parent such as RateLimiter.SEND
+    public static Sender connect(String host, int port, RateLimiter limit) throws IOException {
+        // Open through a SocketChannel so the file body can go out with transferTo
+        Socket socket = SocketChannel.open().socket();
+        try {
+            socket.setReuseAddress(true);
+            long connectStart = System.nanoTime();
+            socket.connect(new InetSocketAddress(host, port), AppConstants.SOCKET_TIMEOUT);
+            long connectNanos = System.nanoTime() - connectStart;
+            PeerTuning.shared().recordRtt(socket.getInetAddress(), connectNanos);
+            Metrics.connected(connectNanos);
+            TransferEngine.configureSendBuffer(socket);
+            socket.setSoTimeout(AppConstants.SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Sender(socket, limit);
+    }
+
+    public String getPeer() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    public void setStreams(int streams) {
+        this.streams = streams;
+    }
+
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    // Off by default: verified bodies are hashed on the heap and lose the zero-copy send
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    // Only the blocks that changed since the receiver's copy cross the network
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    // Chunks the receiver already holds in any file are not sent again
+    public void setDedup(boolean dedup) {
+        this.dedup = dedup;
+    }
+
+    // Bodies go out from the shared selector engine, with transferTo and no compression or hashing
+    public void setNio(boolean nio) {
+        this.nio = nio;
+    }
+
+    // Plain bodies of very large files go out from mapped memory, with no compression or hashing
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    // The running or last send, null before the selection has been sized
+    public TransferSession getSession() {
+        return session;
+    }
+
+    /**
+     * Sends a single file as a file transfer, anything else as one batch, then closes the
+     * connection. The session is COMPLETED and logged on success and FAILED otherwise.
+     */
+    public TransferSession send(List<File> files) throws Exception {
+        try {
+            if (files.size() == 1 && files.get(0).isFile()) {
+                File file = files.get(0);
+                TransferSession current = begin(file.getName(), file.length());
+                if (delta) {
+                    DeltaTransfer.send(file, socket, throttled(current));
+                } else if (dedup) {
+                    DedupTransfer.send(file, socket, throttled(current));
+                } else if (nio) {
+                    NioTransferEngine.await(NioTransferEngine.shared().sendFile(socket.getChannel(), file, streams,
+                            limit, current::update));
+                } else {
+                    byte codec = !mapped && compress ? Compression.CODEC_DEFLATE : Compression.CODEC_NONE;
+                    ParallelTransfer.send(file, socket, streams, codec, !mapped && verify, mapped, throttled(current));
+                }
+            } else {
+                // Folders and multi-selections go as one batch over this connection
+                List<BatchTransfer.Entry> entries = BatchTransfer.collect(files);
+                BatchTransfer.Manifest manifest = BatchTransfer.manifest(files, entries);
+                TransferSession current = begin(manifest.getLabel(), manifest.getTotalBytes());
+                if (nio) {
+                    NioTransferEngine.await(NioTransferEngine.shared().sendBatch(socket.getChannel(), manifest,
+                            entries, limit, current::update));
+                } else {
+                    BatchTransfer.send(manifest, entries, socket, throttled(current));
+                }
+            }
+            session.finish(TransferSession.State.COMPLETED, "Sent");
+            HistoryWriter.shared().log(HistoryStore.SEND, session);
+            return session;
+        } catch (Exception e) {
+            if (session != null) {
+                session.finish(TransferSession.State.FAILED, e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+            throw e;
+        } finally {
+            close();
+        }
+    }
+
+    private TransferSession begin(String name, long totalBytes) {
+        TransferSession current = new TransferSession(getPeer(), name, totalBytes, true);
+        current.start();
+        session = current;
+        return current;
+    }
+
+    // The blocking senders run on their own threads and sleep off the limit in the listener
+    private TransferEngine.ProgressListener throttled(TransferSession current) {
+        return TransferEngine.throttled(current, limit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,98 @@
+package tester;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Transfer totals and speeds per peer, day or direction, read from the rollups the history
+ * store keeps up to date, so opening it costs the same however long the history is.
+ */
+public class StatisticsDialog extends JDialog {
+    private static final String[] GROUPS = {"Per peer", "Per day", "Per direction"};
+    private static final HistoryStore.Dimension[] DIMENSIONS = {
+        HistoryStore.Dimension.PEER, HistoryStore.Dimension.DAY, HistoryStore.Dimension.DIRECTION
+    };
+    private static final String[] KEY_NAMES = {"Peer", "Day", "Direction"};
+
+    private final JComboBox<String> groupBox = new JComboBox<>(GROUPS);
+    private final DefaultTableModel tableModel = new DefaultTableModel() {
+        @Override
+        public boolean isCellEditable(int row, int column) {
+            return false;
+        }
+    };
+
+    public StatisticsDialog(Frame owner) {
+        super(owner, "Statistics", false);
+        setSize(760, 400);
+        setLocationRelativeTo(owner);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        setLayout(new BorderLayout());
+
+        JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 20, 10));
+        groupBox.setFont(AppConstants.DEFAULT_FONT);
+        topPanel.add(groupBox);
+        add(topPanel, BorderLayout.NORTH);
+
+        JTable table = new JTable(tableModel);
+        table.setRowHeight(30);
+        DefaultTableCellRenderer centerRenderer = new DefaultTableCellRenderer();
+        centerRenderer.setHorizontalAlignment(JLabel.CENTER);
+        table.setDefaultRenderer(Object.class, centerRenderer);
+        table.getTableHeader().setFont(new Font("Arial", Font.BOLD, 14));
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        groupBox.addActionListener(e -> load());
+        load();
+    }
+
+    private void load() {
+        int group = groupBox.getSelectedIndex();
+        new SwingWorker<List<HistoryStore.Rollup>, Void>() {
+            @Override
+            protected List<HistoryStore.Rollup> doInBackground() throws Exception {
+                return HistoryStore.shared().getRollups(DIMENSIONS[group]);
+            }
+
+            @Override
+            protected void done() {
+                if (group != groupBox.getSelectedIndex()) {
+                    return; // Superseded by a later selection
+                }
+                try {
+                    show(KEY_NAMES[group], get());
+                } catch (Exception e) {
+                    JOptionPane.showMessageDialog(StatisticsDialog.this, "Could not read history: " + e.getMessage(),
+                            "Error", JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
+    private void show(String keyName, List<HistoryStore.Rollup> rollups) {
+        Object[][] rows = new Object[rollups.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            HistoryStore.Rollup rollup = rollups.get(i);
+            rows[i] = new Object[] {
+                rollup.getKey(),
+                rollup.getTransfers(),
+                getReadableFileSize(rollup.getBytes()),
+                String.format("%.1f s", rollup.getDurationMs() / 1000.0),
+                getReadableFileSize(rollup.getAverageSpeed()) + "/s",
+                getReadableFileSize(rollup.getPeakSpeed()) + "/s"
+            };
+        }
+        tableModel.setDataVector(rows,
+                new Object[] {keyName, "Transfers", "Total", "Time", "Average Speed", "Peak Speed"});
+    }
+
+    private String getReadableFileSize(long bytes) {
+        if (bytes <= 0) return "0 B";
+        final String[] units = {"B", "KB", "MB", "GB", "TB"};
+        int digitGroups = (int) (Math.log10(bytes) / Math.log10(1024));
+        return String.format("%.2f %s", bytes / Math.pow(1024, digitGroups), units[digitGroups]);
+    }
+}
@@ -0,0 +1,86 @@
+package tester;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Speed of a transfer, sampled from its byte counter every PROGRESS_SAMPLE_MS by one shared
+ * background thread, so the transfer loops only ever bump a counter. Keeps an exponentially
+ * smoothed current speed and the peak, measured over windows of at least THROUGHPUT_WINDOW_MS
+ * so a single burst into the socket buffer does not count.
+ */
+public class ThroughputMeter {
+    private static final Set<ThroughputMeter> RUNNING = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("letsshare-throughput").daemon().factory());
+
+    static {
+        SAMPLER.scheduleAtFixedRate(() -> RUNNING.forEach(ThroughputMeter::sample),
+                AppConstants.PROGRESS_SAMPLE_MS, AppConstants.PROGRESS_SAMPLE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private final LongSupplier counter;
+    private long lastSample = System.nanoTime();
+    private long lastBytes;
+    private long windowStart = lastSample;
+    private long windowBytes;
+    private boolean sampled;
+    private volatile long speed;
+    private volatile long peakSpeed;
+
+    // counter returns the total bytes moved so far
+    public ThroughputMeter(LongSupplier counter) {
+        this.counter = counter;
+    }
+
+    public void start() {
+        synchronized (this) {
+            lastSample = windowStart = System.nanoTime();
+            lastBytes = windowBytes = counter.getAsLong();
+        }
+        RUNNING.add(this);
+    }
+
+    // Takes a last sample so the peak covers the tail of the transfer
+    public void stop() {
+        if (RUNNING.remove(this)) {
+            sample();
+        }
+    }
+
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long bytes = counter.getAsLong();
+        long elapsedNanos = now - lastSample;
+        if (elapsedNanos <= 0) {
+            return;
+        }
+        long instant = (bytes - lastBytes) * 1_000_000_000L / elapsedNanos;
+        speed = sampled ? (long) (AppConstants.SPEED_SMOOTHING * instant + (1 - AppConstants.SPEED_SMOOTHING) * speed)
+                : instant;
+        sampled = true;
+        lastSample = now;
+        lastBytes = bytes;
+
+        long windowNanos = now - windowStart;
+        if (windowNanos >= AppConstants.THROUGHPUT_WINDOW_MS * 1_000_000L) {
+            peakSpeed = Math.max(peakSpeed, (bytes - windowBytes) * 1_000_000_000L / windowNanos);
+            windowStart = now;
+            windowBytes = bytes;
+        }
+    }
+
+    // Smoothed bytes per second over the last few samples, 0 before the first one
+    public long getSpeed() {
+        return speed;
+    }
+
+    // Bytes per second in the fastest window, 0 if the transfer was shorter than one window
+    public long getPeakSpeed() {
+        return peakSpeed;
+    }
+}
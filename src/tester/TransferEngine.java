@@ -0,0 +1,330 @@
+package tester;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+public class TransferEngine {
+    // Upper bound for a single transferTo call, so progress keeps flowing and we
+    // stay below the per-call limit some platforms put on sendfile
+    private static final long MAX_TRANSFER_CHUNK = 8L * 1024 * 1024;
+
+    public interface ProgressListener {
+        void onProgress(long transferred);
+
+        // Progress over bytes that never crossed the network, like a resumed prefix; not rate limited
+        default void onSkipped(long transferred) {
+            onProgress(transferred);
+        }
+    }
+
+    // Feeds session and sleeps off limit for bytes that crossed the network; skipped bytes only count as progress
+    static ProgressListener throttled(TransferSession session, RateLimiter limit) {
+        return new ProgressListener() {
+            @Override
+            public void onProgress(long transferred) {
+                limit.acquire(session.update(transferred));
+            }
+
+            @Override
+            public void onSkipped(long transferred) {
+                session.update(transferred);
+            }
+        };
+    }
+
+    /**
+     * Buffered stream used to read the header. Exposes the bytes it has already pulled off the
+     * socket so they can be written out before the rest of the body is read from the channel.
+     */
+    public static class HeaderInputStream extends BufferedInputStream {
+        public HeaderInputStream(InputStream in, int size) {
+            super(in, size);
+        }
+
+        synchronized int drainTo(FileChannel target, long position, long limit) throws IOException {
+            int available = (int) Math.min(count - pos, limit);
+            ByteBuffer pending = ByteBuffer.wrap(buf, pos, available);
+            while (pending.hasRemaining()) {
+                target.write(pending, position + pending.position() - pos);
+            }
+            pos += available;
+            return available;
+        }
+
+        synchronized int drainTo(ByteBuffer target) {
+            int available = Math.min(count - pos, target.remaining());
+            target.put(buf, pos, available);
+            pos += available;
+            return available;
+        }
+    }
+
+    private TransferEngine() {
+    }
+
+    // The size PeerTuning settled on for this peer; until it has one the OS sizes and autotunes the buffer
+    public static void configureSendBuffer(Socket socket) throws SocketException {
+        int size = PeerTuning.shared().forPeer(socket.getInetAddress()).getSocketBuffer();
+        if (size > 0) {
+            socket.setSendBufferSize(size);
+        }
+    }
+
+    public static void configureReceiveBuffer(Socket socket) throws SocketException {
+        int size = PeerTuning.shared().forPeer(socket.getInetAddress()).getSocketBuffer();
+        if (size > 0) {
+            socket.setReceiveBufferSize(size);
+        }
+    }
+
+    // Pipeline buffer size for bodies exchanged with the socket's peer
+    private static int chunkSize(Socket socket) {
+        return PeerTuning.shared().forPeer(socket.getInetAddress()).getChunkSize();
+    }
+
+    /**
+     * Sends count bytes of the file starting at position. Uses FileChannel.transferTo
+     * when the socket has a channel, otherwise falls back to the buffered stream loop.
+     * Any header written to out must already be flushed.
+     */
+    public static long sendFile(FileChannel source, long position, long count, Socket socket,
+                                OutputStream out, ProgressListener listener) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (AppConstants.ZERO_COPY_ENABLED && channel != null && channel.isBlocking()) {
+            return sendZeroCopy(source, position, count, channel, listener);
+        }
+        return sendStream(source, position, count, out, chunkSize(socket), listener);
+    }
+
+    private static long sendZeroCopy(FileChannel source, long position, long count,
+                                     SocketChannel channel, ProgressListener listener) throws IOException {
+        long totalBytesSent = 0;
+        while (totalBytesSent < count && !Thread.currentThread().isInterrupted()) {
+            // Counted as network time: sendfile mostly waits on the socket, the pages come from cache
+            long start = System.nanoTime();
+            long sent = source.transferTo(position + totalBytesSent,
+                    Math.min(MAX_TRANSFER_CHUNK, count - totalBytesSent), channel);
+            Metrics.io(Metrics.Io.NETWORK, System.nanoTime() - start);
+            if (sent <= 0 && position + totalBytesSent >= source.size()) {
+                throw new IOException("File was truncated during transfer");
+            }
+            totalBytesSent += sent;
+            listener.onProgress(totalBytesSent);
+        }
+        return totalBytesSent;
+    }
+
+    private static long sendStream(FileChannel source, long position, long count,
+                                   OutputStream out, int chunkSize, ProgressListener listener) throws IOException {
+        if (count >= AppConstants.PIPELINE_MIN_BYTES) {
+            return sendPipelined(source, position, count, out, chunkSize, listener);
+        }
+        byte[] buffer = new byte[AppConstants.BUFFER_SIZE];
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        long totalBytesSent = 0;
+
+        while (totalBytesSent < count && !Thread.currentThread().isInterrupted()) {
+            wrapper.clear();
+            wrapper.limit((int) Math.min(buffer.length, count - totalBytesSent));
+            int bytesRead = source.read(wrapper, position + totalBytesSent);
+            if (bytesRead == -1) {
+                throw new IOException("File was truncated during transfer");
+            }
+            out.write(buffer, 0, bytesRead);
+            totalBytesSent += bytesRead;
+            listener.onProgress(totalBytesSent);
+        }
+        out.flush();
+        return totalBytesSent;
+    }
+
+    // The file is read ahead on a pipeline thread while this one writes to the socket
+    private static long sendPipelined(FileChannel source, long position, long count,
+                                      OutputStream out, int chunkSize, ProgressListener listener) throws IOException {
+        long[] read = new long[1];
+        long[] sent = new long[1];
+        Pipeline.run(count, chunkSize, false, Metrics.Io.DISK, buffer -> {
+            if (read[0] == count) {
+                return -1;
+            }
+            buffer.limit((int) Math.min(buffer.capacity(), count - read[0]));
+            int bytesRead = source.read(buffer, position + read[0]);
+            if (bytesRead == -1) {
+                throw new IOException("File was truncated during transfer");
+            }
+            read[0] += bytesRead;
+            return bytesRead;
+        }, buffer -> {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            sent[0] += buffer.remaining();
+            listener.onProgress(sent[0]);
+        });
+        out.flush();
+        return sent[0];
+    }
+
+    /**
+     * Receives count bytes into the file starting at position. Reads straight from the socket
+     * channel into a pooled direct buffer and writes it to the file channel, falling back to the
+     * stream loop when the socket has no channel. Returns the number of bytes written, which is
+     * short of count if the sender closed the connection early.
+     */
+    public static long receiveFile(HeaderInputStream in, Socket socket, FileChannel target,
+                                   long position, long count, ProgressListener listener) throws IOException {
+        long totalBytesRead = in.drainTo(target, position, count);
+        if (totalBytesRead > 0) {
+            listener.onProgress(totalBytesRead);
+        }
+
+        SocketChannel channel = socket.getChannel();
+        if (AppConstants.ZERO_COPY_ENABLED && channel != null) {
+            return receiveDirect(channel, socket.getSoTimeout(), target, position, count, totalBytesRead,
+                    chunkSize(socket), listener);
+        }
+        return receiveStream(in, target, position, count, totalBytesRead, chunkSize(socket), listener);
+    }
+
+    // Reads through the header stream only; avoids the selector setup for small batch entries
+    public static long receiveBuffered(InputStream in, FileChannel target, long position, long count,
+                                       ProgressListener listener) throws IOException {
+        return receiveStream(in, target, position, count, 0, AppConstants.PIPELINE_BUFFER_SIZE, listener);
+    }
+
+    private static long receiveDirect(SocketChannel channel, int timeout, FileChannel target, long position,
+                                      long count, long totalBytesRead, int chunkSize,
+                                      ProgressListener listener) throws IOException {
+        // Channel reads ignore SO_TIMEOUT, so wait on a selector to keep the read timeout
+        channel.configureBlocking(false);
+        try {
+            try (Selector selector = Selector.open()) {
+                channel.register(selector, SelectionKey.OP_READ);
+                if (count - totalBytesRead >= AppConstants.PIPELINE_MIN_BYTES) {
+                    totalBytesRead = receivePipelined(channel, selector, timeout, target, position, count,
+                            totalBytesRead, chunkSize, listener);
+                } else {
+                    ByteBuffer buffer = BufferPool.SHARED.acquire();
+                    try {
+                        while (totalBytesRead < count) {
+                            buffer.clear();
+                            buffer.limit((int) Math.min(buffer.capacity(), count - totalBytesRead));
+                            if (read(channel, selector, timeout, buffer) == -1) {
+                                break;
+                            }
+                            buffer.flip();
+                            while (buffer.hasRemaining()) {
+                                totalBytesRead += target.write(buffer, position + totalBytesRead);
+                            }
+                            listener.onProgress(totalBytesRead);
+                        }
+                    } finally {
+                        BufferPool.SHARED.release(buffer);
+                    }
+                }
+            }
+        } finally {
+            // Closing the selector deregisters the channel, so blocking mode can be restored, after a failure too
+            if (channel.isOpen()) {
+                channel.configureBlocking(true);
+            }
+        }
+        return totalBytesRead;
+    }
+
+    // The socket is read on a pipeline thread into pooled direct buffers while this one writes them to disk
+    private static long receivePipelined(SocketChannel channel, Selector selector, int timeout, FileChannel target,
+                                         long position, long count, long totalBytesRead, int chunkSize,
+                                         ProgressListener listener) throws IOException {
+        long[] read = {totalBytesRead};
+        long[] written = {totalBytesRead};
+        Pipeline.run(count - totalBytesRead, chunkSize, true, Metrics.Io.NETWORK, buffer -> {
+            buffer.limit((int) Math.min(buffer.capacity(), count - read[0]));
+            int filled = 0;
+            while (buffer.hasRemaining()) {
+                int bytesRead = read(channel, selector, timeout, buffer);
+                if (bytesRead == -1) {
+                    break;
+                }
+                filled += bytesRead;
+            }
+            read[0] += filled;
+            return filled > 0 ? filled : -1;
+        }, buffer -> {
+            while (buffer.hasRemaining()) {
+                written[0] += target.write(buffer, position + written[0]);
+            }
+            listener.onProgress(written[0]);
+        });
+        return written[0];
+    }
+
+    // Reads what is available, waiting up to timeout for the first byte; -1 at end of stream
+    static int read(SocketChannel channel, Selector selector, int timeout, ByteBuffer buffer) throws IOException {
+        while (true) {
+            int bytesRead = channel.read(buffer);
+            if (bytesRead != 0) {
+                return bytesRead;
+            }
+            if (selector.select(timeout) == 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private static long receiveStream(InputStream in, FileChannel target, long position, long count,
+                                      long totalBytesRead, int chunkSize, ProgressListener listener) throws IOException {
+        if (count - totalBytesRead >= AppConstants.PIPELINE_MIN_BYTES) {
+            return receiveStreamPipelined(in, target, position, count, totalBytesRead, chunkSize, listener);
+        }
+        byte[] buffer = new byte[AppConstants.BUFFER_SIZE];
+        int bytesRead;
+
+        while (totalBytesRead < count
+                && (bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, count - totalBytesRead))) != -1) {
+            ByteBuffer pending = ByteBuffer.wrap(buffer, 0, bytesRead);
+            while (pending.hasRemaining()) {
+                target.write(pending, position + totalBytesRead + pending.position());
+            }
+            totalBytesRead += bytesRead;
+            listener.onProgress(totalBytesRead);
+        }
+        return totalBytesRead;
+    }
+
+    private static long receiveStreamPipelined(InputStream in, FileChannel target, long position, long count,
+                                               long totalBytesRead, int chunkSize,
+                                               ProgressListener listener) throws IOException {
+        long[] read = {totalBytesRead};
+        long[] written = {totalBytesRead};
+        Pipeline.run(count - totalBytesRead, chunkSize, false, Metrics.Io.NETWORK, buffer -> {
+            int length = (int) Math.min(buffer.capacity(), count - read[0]);
+            int filled = 0;
+            while (filled < length) {
+                int bytesRead = in.read(buffer.array(), buffer.arrayOffset() + filled, length - filled);
+                if (bytesRead == -1) {
+                    break;
+                }
+                filled += bytesRead;
+            }
+            buffer.position(filled);
+            read[0] += filled;
+            return filled > 0 ? filled : -1;
+        }, buffer -> {
+            while (buffer.hasRemaining()) {
+                written[0] += target.write(buffer, position + written[0]);
+            }
+            listener.onProgress(written[0]);
+        });
+        return written[0];
+    }
+}
@@ -0,0 +1,131 @@
+package tester;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-connection header sent after the handshake. A kind byte tells a single file from a
+ * batch; for a file, the original fileSize/fileName pair is followed by the transfer id shared
+ * by all streams of one file, the byte range this connection carries, and the codec and
+ * verification the sender would like to use. The receiver answers with what it accepts.
+ */
+public class TransferHeader {
+    public static final byte KIND_FILE = 1;
+    public static final byte KIND_BATCH = 2;
+    public static final byte KIND_DELTA = 3;
+    public static final byte KIND_DEDUP = 4;
+
+    private final long fileSize;
+    private final String fileName;
+    private final long transferId;
+    private final int streams;
+    private final long offset;
+    private final long length;
+    private final byte codec;
+    private final boolean verify;
+
+    public TransferHeader(long fileSize, String fileName, long transferId, int streams, long offset, long length,
+                          byte codec, boolean verify) {
+        this.fileSize = fileSize;
+        this.fileName = fileName;
+        this.transferId = transferId;
+        this.streams = streams;
+        this.offset = offset;
+        this.length = length;
+        this.codec = codec;
+        this.verify = verify;
+    }
+
+    // Splits a file into one header per stream, with the remainder going to the last range
+    public static TransferHeader[] split(long fileSize, String fileName, int streams, byte codec, boolean verify) {
+        long transferId = ThreadLocalRandom.current().nextLong();
+        TransferHeader[] headers = new TransferHeader[streams];
+        long rangeSize = fileSize / streams;
+        for (int i = 0; i < streams; i++) {
+            long offset = i * rangeSize;
+            long length = (i == streams - 1) ? fileSize - offset : rangeSize;
+            headers[i] = new TransferHeader(fileSize, fileName, transferId, streams, offset, length, codec, verify);
+        }
+        return headers;
+    }
+
+    // Small files are not worth the extra connections
+    public static int streamCount(long fileSize, int requested) {
+        long byRangeSize = Math.max(1, fileSize / AppConstants.MIN_STREAM_RANGE);
+        return (int) Math.max(1, Math.min(Math.min(requested, AppConstants.MAX_STREAMS), byRangeSize));
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(AppConstants.HANDSHAKE_MESSAGE);
+        out.writeByte(KIND_FILE);
+        out.writeLong(fileSize);
+        out.writeUTF(fileName);
+        out.writeLong(transferId);
+        out.writeInt(streams);
+        out.writeLong(offset);
+        out.writeLong(length);
+        out.writeByte(codec);
+        out.writeBoolean(verify);
+    }
+
+    // Waits for the handshake and returns the kind of transfer that follows
+    public static byte readKind(DataInputStream in) throws IOException {
+        // Wait for handshake
+        while (true) {
+            if (in.readUTF().equals(AppConstants.HANDSHAKE_MESSAGE))
+                break;
+        }
+        return in.readByte();
+    }
+
+    // Reads the rest of a file header once readKind returned KIND_FILE
+    public static TransferHeader readFile(DataInputStream in) throws IOException {
+        long fileSize = in.readLong();
+        String fileName = in.readUTF();
+        long transferId = in.readLong();
+        int streams = in.readInt();
+        long offset = in.readLong();
+        long length = in.readLong();
+        byte codec = in.readByte();
+        boolean verify = in.readBoolean();
+
+        if (streams < 1 || streams > AppConstants.MAX_STREAMS || offset < 0 || length < 0 || offset + length > fileSize) {
+            throw new IOException("Invalid transfer header");
+        }
+        return new TransferHeader(fileSize, fileName, transferId, streams, offset, length, codec, verify);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public long getTransferId() {
+        return transferId;
+    }
+
+    public int getStreams() {
+        return streams;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public byte getCodec() {
+        return codec;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+}
@@ -0,0 +1,33 @@
+package tester;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A long-running receiver the Receive window or the receive daemon can drive, whichever
+ * engine serves the sockets.
+ */
+public interface TransferServer {
+    // With nio the selector engine, otherwise a virtual thread per sender; mapped applies to the latter only
+    static TransferServer create(File saveDir, int maxSessions, long maxBytesPerSecond, boolean nio, boolean mapped) {
+        return nio ? new NioReceiveServer(saveDir, maxSessions, maxBytesPerSecond)
+                : new ReceiveServer(saveDir, maxSessions, maxBytesPerSecond, mapped);
+    }
+
+    static File defaultSaveDir() {
+        return new File(System.getProperty("user.home") + "/Downloads");
+    }
+
+    void start(int port) throws IOException;
+
+    void stop();
+
+    // Aggregate limit shared by every session; adjustable while transfers run
+    RateLimiter getBandwidth();
+
+    List<TransferSession> getSessions();
+
+    // Removes the sessions that are over and returns them
+    List<TransferSession> clearFinishedSessions();
+}
@@ -0,0 +1,119 @@
+package tester;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of one transfer, incoming or outgoing, updated by the transfer loops and read by
+ * the UI or the command line.
+ */
+public class TransferSession {
+    public enum State { WAITING, TRANSFERRING, COMPLETED, FAILED }
+
+    private final String peer;
+    private final String name;
+    private final long totalBytes;
+    private final boolean outgoing;
+    private final AtomicLong transferred = new AtomicLong();
+    private final ThroughputMeter meter = new ThroughputMeter(transferred::get);
+    private volatile long startTime = System.currentTimeMillis();
+    private volatile long endTime;
+    private volatile State state = State.WAITING;
+    private volatile String message = "";
+
+    public TransferSession(String peer, String name, long totalBytes) {
+        this(peer, name, totalBytes, false);
+    }
+
+    public TransferSession(String peer, String name, long totalBytes, boolean outgoing) {
+        this.peer = peer;
+        this.name = name;
+        this.totalBytes = totalBytes;
+        this.outgoing = outgoing;
+    }
+
+    // Returns the number of new bytes since the last update, which may come from several streams
+    long update(long bytes) {
+        long previous = transferred.getAndAccumulate(bytes, Math::max);
+        long delta = Math.max(0, bytes - previous);
+        if (delta > 0) {
+            Metrics.transferred(outgoing, delta);
+        }
+        return delta;
+    }
+
+    void start() {
+        startTime = System.currentTimeMillis();
+        state = State.TRANSFERRING;
+        meter.start();
+        Metrics.sessionStarted(outgoing);
+    }
+
+    void finish(State state, String message) {
+        State previous = this.state;
+        this.endTime = System.currentTimeMillis();
+        this.message = message;
+        this.state = state;
+        meter.stop();
+        if (previous == State.TRANSFERRING) {
+            Metrics.sessionFinished(outgoing, state == State.COMPLETED, getAverageSpeed());
+        } else if (previous == State.WAITING) {
+            Metrics.sessionFailed(outgoing);
+        }
+    }
+
+    public String getPeer() {
+        return peer;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getTransferred() {
+        return transferred.get();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isActive() {
+        return state == State.WAITING || state == State.TRANSFERRING;
+    }
+
+    public int getPercentage() {
+        return totalBytes > 0 ? (int) (getTransferred() * 100 / totalBytes) : (state == State.COMPLETED ? 100 : 0);
+    }
+
+    // Smoothed current speed while transferring, the average once the session is over
+    public long getSpeed() {
+        return isActive() ? meter.getSpeed() : getAverageSpeed();
+    }
+
+    // Average speed in bytes per second since the session started transferring
+    public long getAverageSpeed() {
+        return getTransferred() * 1000 / Math.max(1, getDurationMs());
+    }
+
+    public long getDurationMs() {
+        long end = isActive() ? System.currentTimeMillis() : endTime;
+        return end - startTime;
+    }
+
+    // Fastest stretch of the transfer; never below the average, which covers short transfers
+    public long getPeakSpeed() {
+        return Math.max(meter.getPeakSpeed(), getAverageSpeed());
+    }
+}